@@ -14,7 +14,7 @@ import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 
-import com.chesapeaketechnology.syncmonkey.fileupload.FileUploadSyncAdapter;
+import com.chesapeaketechnology.syncmonkey.fileupload.SyncRequestCoalescer;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -22,6 +22,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -38,6 +39,11 @@ public class SharingActivity extends AppCompatActivity
     private List<Uri> sharedFileUris;
     private String sharedText;
 
+    /**
+     * The paths of the files written to the private sync directory, so that the sync only has to look at them.
+     */
+    private final List<String> copiedFilePaths = new ArrayList<>();
+
     @Override
     protected void onCreate(Bundle savedInstanceState)
     {
@@ -52,7 +58,7 @@ public class SharingActivity extends AppCompatActivity
             // If a sync now action was sent, run the sync adapter and then finish the activity.
             if (SyncMonkeyConstants.ACTION_SYNC_NOW.equals(action))
             {
-                FileUploadSyncAdapter.runSyncAdapterNow(getApplicationContext());
+                SyncRequestCoalescer.requestSync(getApplicationContext());
                 finish();
                 return;
             }
@@ -72,7 +78,7 @@ public class SharingActivity extends AppCompatActivity
                 final String fileName = fileNameEditText.getText().toString();
                 if (copySharedFilesToSyncMonkeyDirectory(fileName))
                 {
-                    FileUploadSyncAdapter.runSyncAdapterNow(getApplicationContext());
+                    SyncRequestCoalescer.requestSync(getApplicationContext(), copiedFilePaths);
                     finish();
                 }
             });
@@ -286,7 +292,7 @@ public class SharingActivity extends AppCompatActivity
 
             if (runSync)
             {
-                FileUploadSyncAdapter.runSyncAdapterNow(getApplicationContext());
+                SyncRequestCoalescer.requestSync(getApplicationContext(), copiedFilePaths);
                 finish();
             }
         } catch (Exception e)
@@ -420,6 +426,7 @@ public class SharingActivity extends AppCompatActivity
 
         //noinspection ResultOfMethodCallIgnored
         targetFile.createNewFile();
+        copiedFilePaths.add(targetFile.getPath());
 
         return new FileOutputStream(targetFile);
     }
@@ -5,7 +5,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
+import com.chesapeaketechnology.syncmonkey.fileupload.ConnectivityMonitor;
 import com.chesapeaketechnology.syncmonkey.fileupload.FileUploadSyncAdapter;
+import com.chesapeaketechnology.syncmonkey.fileupload.ScheduledSyncWorker;
+import com.chesapeaketechnology.syncmonkey.fileupload.SyncDirectoryWatcher;
 
 import net.grandcentrix.tray.AppPreferences;
 
@@ -40,6 +43,9 @@ public class StartSyncMonkeyAtBootReceiver extends BroadcastReceiver
             SyncMonkeyMainActivity.readSyncMonkeyManagedConfiguration(applicationContext, appPreferences);
 
             FileUploadSyncAdapter.addPeriodicSync(applicationContext);
+            SyncDirectoryWatcher.update(applicationContext);
+            ConnectivityMonitor.getInstance(applicationContext).startSyncTrigger();
+            ScheduledSyncWorker.watchScheduleSettings(applicationContext);
 
             // Register a listener for Managed Configuration changes.
             SyncMonkeyMainActivity.registerManagedConfigurationListener(applicationContext, appPreferences);
@@ -62,15 +62,134 @@ public class SyncMonkeyConstants
     public static final String PROPERTY_CONTAINER_NAME_KEY = "containerName";
     public static final String PROPERTY_AZURE_SAS_URL_KEY = "sas_url";
     public static final String PROPERTY_LOCAL_SYNC_DIRECTORIES_KEY = "localSyncDirectories";
+    public static final String PROPERTY_APPEND_SYNC_DIRECTORIES_KEY = "appendSyncDirectories";
     public static final String PROPERTY_DEVICE_ID_KEY = "deviceId";
     public static final String PROPERTY_AUTO_SYNC_KEY = "autoSync";
     public static final String PROPERTY_VPN_ONLY_KEY = "vpnOnly";
     public static final String PROPERTY_WIFI_ONLY_KEY = "wifiOnly";
+    public static final String PROPERTY_CHARGING_ONLY_KEY = "chargingOnly";
+    public static final String PROPERTY_WATCH_SYNC_DIRECTORIES_KEY = "watchSyncDirectories";
+    public static final String PROPERTY_FILE_WATCH_DEBOUNCE_SECONDS_KEY = "fileWatchDebounceSeconds";
+    public static final String PROPERTY_MIN_SYNC_INTERVAL_MINUTES_KEY = "minSyncIntervalMinutes";
+    public static final String PROPERTY_MAX_SYNC_INTERVAL_MINUTES_KEY = "maxSyncIntervalMinutes";
+    public static final String PROPERTY_EXISTENCE_CHECK_MODE_KEY = "existenceCheckMode";
+    public static final String PROPERTY_UPLOAD_WORKER_COUNT_KEY = "uploadWorkerCount";
+    public static final String PROPERTY_BLOCK_UPLOAD_THRESHOLD_MB_KEY = "blockUploadThresholdMb";
+    public static final String PROPERTY_BLOCK_SIZE_MB_KEY = "blockSizeMb";
+    public static final String PROPERTY_MAX_UPLOAD_ATTEMPTS_KEY = "maxUploadAttempts";
+    public static final String PROPERTY_UPLOAD_RATE_LIMIT_KBPS_KEY = "uploadRateLimitKBps";
+    public static final String PROPERTY_UPLOAD_BURST_SIZE_KB_KEY = "uploadBurstSizeKB";
+    public static final String PROPERTY_COMPRESSION_FORMAT_KEY = "compressionFormat";
+    public static final String PROPERTY_COMPRESSION_LEVEL_KEY = "compressionLevel";
+    public static final String PROPERTY_COMPRESSED_EXTENSIONS_KEY = "compressedExtensions";
+    public static final String PROPERTY_BUNDLE_FILE_SIZE_THRESHOLD_KB_KEY = "bundleFileSizeThresholdKb";
+    public static final String PROPERTY_MAX_BUNDLE_SIZE_MB_KEY = "maxBundleSizeMb";
+    public static final String PROPERTY_STABLE_FILE_WINDOW_SECONDS_KEY = "stableFileWindowSeconds";
+    public static final String PROPERTY_IN_PROGRESS_MARKER_SUFFIXES_KEY = "inProgressMarkerSuffixes";
+    public static final String PROPERTY_REQUEST_TIMEOUT_SECONDS_KEY = "requestTimeoutSeconds";
+    public static final String PROPERTY_MAX_REQUEST_EXECUTION_TIME_SECONDS_KEY = "maxRequestExecutionTimeSeconds";
+    public static final String PROPERTY_STALL_TIMEOUT_SECONDS_KEY = "stallTimeoutSeconds";
+    public static final String PROPERTY_RETENTION_MODE_KEY = "retentionMode";
+    public static final String PROPERTY_RETENTION_ARCHIVE_DIRECTORY_KEY = "retentionArchiveDirectory";
+    public static final String PROPERTY_RETENTION_MAX_SIZE_MB_KEY = "retentionMaxSizeMb";
+    public static final String PROPERTY_RETENTION_MAX_AGE_DAYS_KEY = "retentionMaxAgeDays";
+    public static final String PROPERTY_BACKLOG_BUDGET_MB_KEY = "backlogBudgetMb";
+    public static final String PROPERTY_FRESH_FILE_WINDOW_HOURS_KEY = "freshFileWindowHours";
 
     public static final String DEFAULT_DEVICE_ID = "UnknownDeviceId";
 
+    // Values for the existence check mode preference
+    public static final String EXISTENCE_CHECK_MODE_LIST = "list";
+    public static final String EXISTENCE_CHECK_MODE_CONDITIONAL = "conditional";
+
+    // The number of files that are uploaded in parallel
+    public static final int DEFAULT_UPLOAD_WORKER_COUNT = 4;
+    public static final int MIN_UPLOAD_WORKER_COUNT = 1;
+    public static final int MAX_UPLOAD_WORKER_COUNT = 8;
+
+    // Files at or above the threshold are split into blocks that are uploaded in parallel
+    public static final int DEFAULT_BLOCK_UPLOAD_THRESHOLD_MB = 16;
+    public static final int DEFAULT_BLOCK_SIZE_MB = 4;
+    public static final int MIN_BLOCK_SIZE_MB = 1;
+    public static final int MAX_BLOCK_SIZE_MB = 100;
+    // The block size is reduced so that the blocks one upload session can hold in memory stay within this budget
+    public static final int MAX_BLOCK_BUFFER_MEMORY_MB = 128;
+
+    // Requests that fail with a transient error are retried with an exponential backoff between the attempts
+    public static final int DEFAULT_MAX_UPLOAD_ATTEMPTS = 4;
+    public static final int MIN_MAX_UPLOAD_ATTEMPTS = 1;
+    public static final int MAX_MAX_UPLOAD_ATTEMPTS = 10;
+    public static final long RETRY_BASE_DELAY_MS = 1000;
+    public static final long RETRY_MAX_DELAY_MS = 30000;
+
+    // The total upload rate of all the parallel uploads, where a rate of 0 means no limit and a burst of 0 means one second's worth
+    public static final int DEFAULT_UPLOAD_RATE_LIMIT_KBPS = 0;
+    public static final int DEFAULT_UPLOAD_BURST_SIZE_KB = 0;
+
+    // Values for the compression format preference, and the settings for which files are compressed and how much
+    public static final String COMPRESSION_FORMAT_NONE = "none";
+    public static final String COMPRESSION_FORMAT_GZIP = "gzip";
+    public static final String COMPRESSION_FORMAT_DEFLATE = "deflate";
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    public static final int MIN_COMPRESSION_LEVEL = 1;
+    public static final int MAX_COMPRESSION_LEVEL = 9;
+    public static final String DEFAULT_COMPRESSED_EXTENSIONS = "csv:json:log:txt";
+
+    // Files below the threshold are bundled into zip archives, where a threshold of 0 turns bundling off
+    public static final int DEFAULT_BUNDLE_FILE_SIZE_THRESHOLD_KB = 0;
+    public static final int DEFAULT_MAX_BUNDLE_SIZE_MB = 32;
+
+    // Files modified within the window, or with a marker file next to them, are still being written and are deferred
+    public static final int DEFAULT_STABLE_FILE_WINDOW_SECONDS = 60;
+    public static final String DEFAULT_IN_PROGRESS_MARKER_SUFFIXES = ".lock:.part:.tmp";
+
+    // Timeouts for requests to blob storage, and how long a request can go without progress before it is aborted, where 0 turns each off.
+    // Stalls are caught by the stall timeout, so by default a request that is still making progress is never cut off.
+    public static final int DEFAULT_REQUEST_TIMEOUT_SECONDS = 60;
+    public static final int DEFAULT_MAX_REQUEST_EXECUTION_TIME_SECONDS = 0;
+    public static final int DEFAULT_STALL_TIMEOUT_SECONDS = 120;
+
+    // Values for the retention mode preference, and the quota that uploaded files are removed to stay under, where 0 means no limit
+    public static final String RETENTION_MODE_KEEP = "keep";
+    public static final String RETENTION_MODE_DELETE = "delete";
+    public static final String RETENTION_MODE_ARCHIVE = "archive";
+    public static final String RETENTION_MODE_QUOTA = "quota";
+    public static final String DEFAULT_RETENTION_ARCHIVE_DIRECTORY = "SyncMonkeyArchive";
+    public static final int DEFAULT_RETENTION_MAX_SIZE_MB = 2048;
+    public static final int DEFAULT_RETENTION_MAX_AGE_DAYS = 0;
+
+    // Files older than the fresh window are backlog, and only the budget's worth of backlog is uploaded per sync, where 0 means no limit
+    public static final int DEFAULT_BACKLOG_BUDGET_MB = 0;
+    public static final int DEFAULT_FRESH_FILE_WINDOW_HOURS = 24;
+
+    // Watching the sync directories starts a sync of just the new files once they have been left alone for the debounce delay
+    public static final boolean DEFAULT_WATCH_SYNC_DIRECTORIES = false;
+    public static final int DEFAULT_FILE_WATCH_DEBOUNCE_SECONDS = 10;
+    public static final int FILE_WATCH_MAX_BATCH_DELAY_SECONDS = 60;
+
+    // The sync extra that limits a sync to a list of files, which are joined with a character that can't be in a path
+    public static final String SYNC_EXTRAS_TARGET_PATHS = "targetPaths";
+    public static final String TARGET_PATH_SEPARATOR = "\u0000";
+    public static final int MAX_TARGET_PATHS = 200;
+
+    // Sync now requests that come in within the window of each other are merged into one sync
+    public static final long SYNC_REQUEST_COALESCE_WINDOW_MS = 2_000;
+    public static final long SYNC_REQUEST_MAX_COALESCE_DELAY_MS = 10_000;
+
+    // The periodic sync interval adapts between the min and max to how fast data is written, so a fixed interval is used when they are the same.
+    // WorkManager does not allow periodic work more often than every 15 minutes.
+    public static final int DEFAULT_MIN_SYNC_INTERVAL_MINUTES = 60;
+    public static final int DEFAULT_MAX_SYNC_INTERVAL_MINUTES = 60;
+    public static final int MIN_SYNC_INTERVAL_MINUTES = 15;
+    public static final long ADAPTIVE_SYNC_TARGET_BYTES = 10 * 1024 * 1024;
+
     // Tray Preferences used for the syncing status
     public static final String TRAY_STATUS_MODULE = "sync_monkey_sync_status_module";
     public static final String STATUS_PROPERTY_LAST_SUCCESSFUL_TIME_KEY = "status_last_success";
     public static final String STATUS_PROPERTY_LAST_SYNC_STATUS_KEY = "status_last_sync_status";
+    public static final String STATUS_PROPERTY_SCHEDULED_SYNC_KEY = "status_scheduled_sync";
+    public static final String STATUS_PROPERTY_LAST_SCAN_TIME_KEY = "status_last_scan_time";
+    public static final String STATUS_PROPERTY_DATA_RATE_KEY = "status_data_rate";
+    public static final String STATUS_PROPERTY_SYNC_INTERVAL_KEY = "status_sync_interval";
+    public static final String STATUS_PROPERTY_SYNC_PENDING_KEY = "status_sync_pending";
 }
@@ -32,7 +32,11 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.util.Pair;
 import androidx.preference.PreferenceManager;
 
+import com.chesapeaketechnology.syncmonkey.fileupload.ConnectivityMonitor;
 import com.chesapeaketechnology.syncmonkey.fileupload.FileUploadSyncAdapter;
+import com.chesapeaketechnology.syncmonkey.fileupload.ScheduledSyncWorker;
+import com.chesapeaketechnology.syncmonkey.fileupload.SyncDirectoryWatcher;
+import com.chesapeaketechnology.syncmonkey.fileupload.SyncRequestCoalescer;
 import com.chesapeaketechnology.syncmonkey.settings.SettingsActivity;
 import com.google.android.gms.ads.identifier.AdvertisingIdClient;
 
@@ -280,9 +284,13 @@ public class SyncMonkeyMainActivity extends AppCompatActivity
 
         final boolean autoSync = appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_AUTO_SYNC_KEY, true);
 
-        // Per the ContentResolver#addPeriodicSync javadoc, if the is already another periodic sync scheduled with the account, authority, and extras, then
-        // a new periodic sync won't be added.
+        // An existing periodic sync is kept as is unless its constraints have changed, so this is safe to call on every resume
         if (autoSync) FileUploadSyncAdapter.addPeriodicSync(getApplicationContext());
+
+        // Also stops the watches if Auto Sync or the watch setting has been turned off
+        SyncDirectoryWatcher.update(getApplicationContext());
+        ConnectivityMonitor.getInstance(getApplicationContext()).startSyncTrigger();
+        ScheduledSyncWorker.watchScheduleSettings(getApplicationContext());
     }
 
     /**
@@ -295,7 +303,7 @@ public class SyncMonkeyMainActivity extends AppCompatActivity
         try
         {
             appPreferences.getString(SyncMonkeyConstants.PROPERTY_AZURE_SAS_URL_KEY);
-            FileUploadSyncAdapter.runSyncAdapterNow(getApplicationContext());
+            SyncRequestCoalescer.requestSync(getApplicationContext());
         } catch (ItemNotFoundException e)
         {
             final String noSasUrlMessage = "No Azure SAS URL found, enter it in the User Settings";
@@ -391,6 +399,8 @@ public class SyncMonkeyMainActivity extends AppCompatActivity
                     case SyncMonkeyConstants.PROPERTY_AUTO_SYNC_KEY:
                     case SyncMonkeyConstants.PROPERTY_VPN_ONLY_KEY:
                     case SyncMonkeyConstants.PROPERTY_WIFI_ONLY_KEY:
+                    case SyncMonkeyConstants.PROPERTY_CHARGING_ONLY_KEY:
+                    case SyncMonkeyConstants.PROPERTY_WATCH_SYNC_DIRECTORIES_KEY:
                         appPreferences.put(key, Boolean.parseBoolean((String) preferenceEntry.getValue()));
                         break;
 
@@ -436,6 +446,9 @@ public class SyncMonkeyMainActivity extends AppCompatActivity
                     } else if (!mdmOverride && property instanceof Boolean) // Currently, all the boolean MDM preferences are allowed to be overridden by the user
                     {
                         appPreferences.put(key, (Boolean) property);
+                    } else if (property instanceof Integer)
+                    {
+                        appPreferences.put(key, (Integer) property);
                     }
                 });
             }
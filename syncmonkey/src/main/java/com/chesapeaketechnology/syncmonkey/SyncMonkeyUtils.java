@@ -6,6 +6,8 @@ import android.util.Log;
 
 import androidx.core.util.Pair;
 
+import net.grandcentrix.tray.TrayPreferences;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -98,6 +100,31 @@ public final class SyncMonkeyUtils
         return privateAppFilesSyncDirectory;
     }
 
+    /**
+     * Reads an integer preference. Integer preferences can be stored as Strings when they come from the properties
+     * file or an edit text preference, so the value is parsed rather than read directly as an int.
+     *
+     * @param preferences  The preferences to read the value from.
+     * @param key          The key of the preference.
+     * @param defaultValue The value to return if the preference is not set or is not a valid integer.
+     * @return The integer value of the preference.
+     * @since 1.3.0
+     */
+    public static int getIntPreference(TrayPreferences preferences, String key, int defaultValue)
+    {
+        final String value = preferences.getString(key, null);
+        if (value == null || value.trim().isEmpty()) return defaultValue;
+
+        try
+        {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e)
+        {
+            Log.w(LOG_TAG, "The " + key + " preference is not a valid integer: " + value);
+            return defaultValue;
+        }
+    }
+
     /**
      * Gets a human readable date/time string to display to the user.
      *
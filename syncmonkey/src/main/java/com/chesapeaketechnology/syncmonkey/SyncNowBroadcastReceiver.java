@@ -5,7 +5,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
-import com.chesapeaketechnology.syncmonkey.fileupload.FileUploadSyncAdapter;
+import com.chesapeaketechnology.syncmonkey.fileupload.SyncRequestCoalescer;
 
 /**
  * Kicks off a sync when the {@link SyncMonkeyConstants#ACTION_SYNC_NOW} broadcast is received.
@@ -25,6 +25,6 @@ public class SyncNowBroadcastReceiver extends BroadcastReceiver
 
         Log.i(LOG_TAG, "Kicking off a sync because a broadcast was received for the SYNC_NOW action");
 
-        FileUploadSyncAdapter.runSyncAdapterNow(context);
+        SyncRequestCoalescer.requestSync(context);
     }
 }
@@ -0,0 +1,86 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Works out how long to wait between periodic syncs from how fast new data is being written to the sync directories.
+ * The aim is for each sync to carry about the target amount of data, so a device that is producing data quickly syncs
+ * often and keeps the upload latency low, and a device that is sitting idle syncs rarely and saves battery and radio
+ * time. If the last sync could not upload everything, the shortest interval is used until the backlog is cleared.
+ * <p>
+ * The interval is rounded to a whole number of steps so that small changes in the data rate do not reschedule the sync
+ * every time.
+ *
+ * @since 1.3.0
+ */
+public class AdaptiveSyncInterval
+{
+    /**
+     * The value used for the data rate before there are two syncs to measure it between.
+     */
+    public static final long UNKNOWN_DATA_RATE = -1;
+
+    static final long INTERVAL_STEP_MS = TimeUnit.MINUTES.toMillis(15);
+
+    private final long minIntervalMs;
+    private final long maxIntervalMs;
+    private final long targetBytesPerSync;
+
+    /**
+     * @param minIntervalMs      The shortest time between syncs.
+     * @param maxIntervalMs      The longest time between syncs. If this is the same as the min, the interval is fixed.
+     * @param targetBytesPerSync How much new data each sync should carry.
+     */
+    public AdaptiveSyncInterval(long minIntervalMs, long maxIntervalMs, long targetBytesPerSync)
+    {
+        this.minIntervalMs = minIntervalMs;
+        this.maxIntervalMs = Math.max(minIntervalMs, maxIntervalMs);
+        this.targetBytesPerSync = targetBytesPerSync;
+    }
+
+    /**
+     * Updates the estimate of how fast data is being written, smoothing it over the previous syncs so that one
+     * unusually busy or quiet interval does not swing the schedule too far.
+     *
+     * @param previousBytesPerHour The previous estimate, or {@link #UNKNOWN_DATA_RATE}.
+     * @param newBytes             The amount of data written since the previous sync.
+     * @param elapsedMs            The time since the previous sync.
+     * @return The new estimate in bytes per hour.
+     */
+    public static long estimateDataRate(long previousBytesPerHour, long newBytes, long elapsedMs)
+    {
+        if (elapsedMs <= 0) return previousBytesPerHour;
+
+        final long observedBytesPerHour = (long) (newBytes * (double) TimeUnit.HOURS.toMillis(1) / elapsedMs);
+        if (previousBytesPerHour == UNKNOWN_DATA_RATE) return observedBytesPerHour;
+
+        return (previousBytesPerHour + observedBytesPerHour) / 2;
+    }
+
+    /**
+     * @param bytesPerHour      The estimate of how fast data is being written, or {@link #UNKNOWN_DATA_RATE}.
+     * @param backlogRemaining  True if the last sync left files that still need to be uploaded.
+     * @param currentIntervalMs The interval in use now, which is kept if the data rate is not known yet.
+     * @return The time to wait until the next sync in milliseconds.
+     */
+    public long nextIntervalMs(long bytesPerHour, boolean backlogRemaining, long currentIntervalMs)
+    {
+        if (backlogRemaining) return minIntervalMs;
+        if (bytesPerHour == UNKNOWN_DATA_RATE) return clamp(currentIntervalMs);
+        if (bytesPerHour == 0) return maxIntervalMs;
+
+        final double intervalMs = targetBytesPerSync * (double) TimeUnit.HOURS.toMillis(1) / bytesPerHour;
+        final long roundedIntervalMs = Math.round(intervalMs / INTERVAL_STEP_MS) * INTERVAL_STEP_MS;
+
+        return clamp(roundedIntervalMs);
+    }
+
+    /**
+     * @param intervalMs An interval in milliseconds.
+     * @return The interval limited to the min and max intervals.
+     */
+    public long clamp(long intervalMs)
+    {
+        return Math.max(minIntervalMs, Math.min(maxIntervalMs, intervalMs));
+    }
+}
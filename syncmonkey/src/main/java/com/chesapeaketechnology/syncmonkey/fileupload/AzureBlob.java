@@ -2,31 +2,122 @@ package com.chesapeaketechnology.syncmonkey.fileupload;
 
 import android.util.Log;
 
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.RetryNoRetry;
 import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockListingFilter;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+import com.microsoft.azure.storage.blob.CloudAppendBlob;
 import com.microsoft.azure.storage.blob.CloudBlobContainer;
 import com.microsoft.azure.storage.blob.CloudBlockBlob;
 import com.microsoft.azure.storage.blob.ListBlobItem;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.stream.Stream;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Facilitates uploading of files to Azure Blob storage by using a SAS URL to an Azure Blob container
  * with Write and List permissions. The list permission is needed to check if local file name exists
- * on the blob storage account and if so the upload is skipped.
+ * on the blob storage account and if so the upload is skipped. The list permission is not needed when
+ * the {@link ExistenceCheckMode#CONDITIONAL_CREATE} mode is used.
+ * <p>
+ * Files that grow over time, such as survey logs, can instead be synced to append blobs so that only the data added
+ * since the last sync is uploaded.
  *
  * @since 1.2.0
  */
 public class AzureBlob
 {
     private static final String LOG_TAG = AzureBlob.class.getSimpleName();
+
+    /**
+     * The maximum number of blobs to request per listing call. This matches the service side maximum.
+     */
+    private static final int LISTING_SEGMENT_SIZE = 5000;
+
+    /**
+     * The maximum number of bytes that can be sent in a single append block request.
+     */
+    private static final int MAX_APPEND_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Files at or above this size are checked for before a conditional create, since the service only rejects a
+     * conditional create once the whole file has been sent.
+     */
+    private static final long CONDITIONAL_CREATE_CHECK_THRESHOLD = 1024 * 1024;
+
+    /**
+     * The blob metadata key that holds the uncompressed size of a file that was compressed while it was uploaded.
+     */
+    private static final String ORIGINAL_SIZE_METADATA_KEY = "originalsize";
+
+    /**
+     * The blob metadata key that holds the MD5 of the uncompressed content of a file that was compressed while it was
+     * uploaded.
+     */
+    private static final String ORIGINAL_MD5_METADATA_KEY = "originalmd5";
+
+    /**
+     * The name of the entry at the end of every bundle archive that lists the files in the archive.
+     */
+    private static final String BUNDLE_INDEX_ENTRY_NAME = "bundle-index.csv";
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    private static final DateTimeFormatter BUNDLE_TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssSSS'Z'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
     private CloudBlobContainer container = null;
 
     public AzureBlob(String sasUrl)
@@ -34,6 +125,10 @@ public class AzureBlob
         try
         {
             container = new CloudBlobContainer(URI.create(sasUrl));
+
+            // Retries are handled by the upload session's retry policy, so stop the SDK from retrying on top of it. Every
+            // request is made directly rather than through the SDK's BlobOutputStream, so no upload is left without retries.
+            container.getServiceClient().getDefaultRequestOptions().setRetryPolicyFactory(new RetryNoRetry());
         } catch (Throwable t)
         {
             Log.e(LOG_TAG, "Could not access cloud account.", t);
@@ -41,57 +136,1246 @@ public class AzureBlob
     }
 
     /**
-     * Uploads the provided file or folder to azure blob storage container.
+     * Sets the timeouts that apply to every request made by this client. These are read from the preferences at the
+     * start of each sync because the client is kept across syncs.
      *
-     * @param fileOrFolderToUpload The file(s) to upload to Azure Blob storage
+     * @param serverTimeoutMs        How long blob storage is allowed to spend on each request before it gives up, or 0 to
+     *                               use the service default.
+     * @param maximumExecutionTimeMs The longest that a single request can run for before it is abandoned, or 0 for no
+     *                               limit. The SDK applies this to each call, but every call makes exactly one request
+     *                               because the SDK's own retries are turned off and nothing is uploaded through its
+     *                               BlobOutputStream, so it is a limit per request. An abandoned request fails with a
+     *                               client side timeout that the retry policy treats as transient.
+     * @since 1.3.0
+     */
+    public void setRequestTimeouts(int serverTimeoutMs, int maximumExecutionTimeMs)
+    {
+        if (container == null) return;
+
+        final BlobRequestOptions defaultRequestOptions = container.getServiceClient().getDefaultRequestOptions();
+        defaultRequestOptions.setTimeoutIntervalInMs(serverTimeoutMs > 0 ? serverTimeoutMs : null);
+        defaultRequestOptions.setMaximumExecutionTimeInMs(maximumExecutionTimeMs > 0 ? maximumExecutionTimeMs : null);
+    }
+
+    /**
+     * Uploads the provided files to the azure blob storage container. The files are independent of each other, so
+     * they are uploaded concurrently on the upload session's file executor, which bounds the number of parallel
+     * uploads.
+     * <p>
+     * When using the {@link ExistenceCheckMode#LIST} mode, the remote blob names under the destination path are listed
+     * once up front so that checking if a local file has already been uploaded does not require a remote call per file.
+     * When using the {@link ExistenceCheckMode#CONDITIONAL_CREATE} mode, no listing is performed and the service
+     * rejects any upload for a blob that already exists. Large files are checked for before they are uploaded, since
+     * the service only rejects the upload after the whole file has been sent.
+     * <p>
+     * A file that has been synced before and has changed since is uploaded again, replacing its blob. The MD5 of every
+     * uploaded file is worked out in the same pass that reads the file for the upload.
+     * <p>
+     * Each blob is named with the path of its file relative to the sync directory, so files with the same name in
+     * different subdirectories never share a blob.
+     *
+     * @param filesToUpload   The files to upload to Azure Blob storage
+     * @param baseDirectory   The sync directory that the files are in. The blobs are named relative to it.
      * @param destinationPath The Blob Storage path to store the files (i.e. blobs) under
+     * @param uploadSession   The settings and worker threads to use for the upload.
+     * @return The result of the upload, which contains the files that are present in blob storage after this call and
+     * the files that could not be uploaded.
+     */
+    public UploadResult uploadFiles(Collection<Path> filesToUpload, Path baseDirectory, String destinationPath, UploadSession uploadSession)
+    {
+        final UploadResult uploadResult = new UploadResult();
+
+        final Map<String, String> remoteBlobHashes;
+        if (uploadSession.getExistenceCheckMode() == ExistenceCheckMode.LIST)
+        {
+            try
+            {
+                remoteBlobHashes = getRemoteBlobHashes(destinationPath, uploadSession);
+            } catch (StorageException | IOException e)
+            {
+                Log.e(LOG_TAG, "Could not list the blobs in blob storage, skipping the upload to " + destinationPath, e);
+                filesToUpload.forEach(uploadResult::addFailedFile);
+                return uploadResult;
+            }
+        } else
+        {
+            remoteBlobHashes = new ConcurrentHashMap<>();
+        }
+
+        final Map<Path, Future<UploadResult>> uploads = new LinkedHashMap<>();
+        for (Path file : filesToUpload)
+        {
+            uploads.put(file, uploadSession.submitFile(() -> uploadFile(file, baseDirectory, destinationPath, remoteBlobHashes, uploadSession)));
+        }
+
+        waitForFileUploads(uploads, uploadResult);
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, "Processed " + filesToUpload.size() + " files for " + destinationPath + " using the "
+                    + uploadSession.getExistenceCheckMode() + " existence check mode, " + uploadResult.getFailedFiles().size() + " failed");
+        }
+
+        return uploadResult;
+    }
+
+    /**
+     * Syncs the provided files to append blobs. Each file is expected to only ever be appended to locally, so only the
+     * bytes past the length that has already been appended to its blob are sent. The appended length of each file is
+     * tracked in the {@link SyncStateIndex}, and is checked against the blob using an append position access condition
+     * so that data is never appended twice or out of order.
+     *
+     * @param filesToAppend   The files to sync, mapped to the length in bytes of each file to sync up to.
+     * @param baseDirectory   The sync directory that the files are in. The blobs are named relative to it.
+     * @param destinationPath The Blob Storage path to store the files (i.e. blobs) under
+     * @param uploadSession   The settings and worker threads to use for the upload.
+     * @return The result of the upload, which contains the files whose blobs are up to date with the requested length
+     * and the files that could not be appended.
+     * @since 1.3.0
+     */
+    public UploadResult appendFiles(Map<Path, Long> filesToAppend, Path baseDirectory, String destinationPath, UploadSession uploadSession)
+    {
+        final UploadResult uploadResult = new UploadResult();
+
+        final Map<Path, Future<UploadResult>> uploads = new LinkedHashMap<>();
+        filesToAppend.forEach((file, length) ->
+                uploads.put(file, uploadSession.submitFile(() -> appendFile(file, length, baseDirectory, destinationPath, uploadSession))));
+
+        waitForFileUploads(uploads, uploadResult);
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, "Processed " + filesToAppend.size() + " append blob files for " + destinationPath + ", "
+                    + uploadResult.getFailedFiles().size() + " failed");
+        }
+
+        return uploadResult;
+    }
+
+    /**
+     * Bundles the provided small files into zip archives and uploads each archive as a single blob, so that a large
+     * number of tiny files only takes a handful of requests. A new archive is started whenever the files in the
+     * current one add up to the maximum bundle size. Each archive ends with a {@value #BUNDLE_INDEX_ENTRY_NAME} entry
+     * that lists the original path, size, and last modified time of every file in it.
+     * <p>
+     * When using the {@link ExistenceCheckMode#LIST} mode, a file that is already in blob storage as a blob of its own
+     * with the same content, for example because the sync state index was lost, is left out of the archives. Only the
+     * size of each file found by the scan is put in its archive, so data written to a file during the sync is left for
+     * the next sync.
+     *
+     * @param filesToBundle   The files to bundle, mapped to their size in bytes.
+     * @param baseDirectory   The sync directory that the files are in. The archive entries are named relative to it.
+     * @param destinationPath The Blob Storage path to store the archives under.
+     * @param uploadSession   The settings and worker threads to use for the upload.
+     * @return The result of the upload, where every file that was put into an uploaded archive is mapped to the name
+     * of the archive's blob.
+     * @since 1.3.0
      */
-    public void uploadFile(String fileOrFolderToUpload, String destinationPath)
+    public UploadResult uploadBundles(Map<Path, Long> filesToBundle, Path baseDirectory, String destinationPath, UploadSession uploadSession)
     {
-        try (Stream<Path> walk = Files.walk(Paths.get(fileOrFolderToUpload)))
+        final UploadResult uploadResult = new UploadResult();
+        final String bundleTimestamp = BUNDLE_TIMESTAMP_FORMATTER.format(Instant.now());
+
+        final Map<Path, Long> filesToZip;
+        if (uploadSession.getExistenceCheckMode() == ExistenceCheckMode.LIST)
+        {
+            try
+            {
+                filesToZip = removeFilesAlreadyPresent(filesToBundle, baseDirectory, destinationPath, uploadSession, uploadResult);
+            } catch (StorageException | IOException e)
+            {
+                Log.e(LOG_TAG, "Could not list the blobs in blob storage, skipping the bundles for " + destinationPath, e);
+                filesToBundle.keySet().forEach(uploadResult::addFailedFile);
+                return uploadResult;
+            }
+        } else
+        {
+            filesToZip = filesToBundle;
+        }
+
+        final List<List<Path>> bundles = new ArrayList<>();
+        List<Path> currentBundle = new ArrayList<>();
+        long currentBundleSize = 0;
+        for (Map.Entry<Path, Long> fileToBundle : filesToZip.entrySet())
         {
-            walk.filter(Files::isRegularFile).forEach(file -> {
+            if (!currentBundle.isEmpty() && currentBundleSize + fileToBundle.getValue() > uploadSession.getMaxBundleSize())
+            {
+                bundles.add(currentBundle);
+                currentBundle = new ArrayList<>();
+                currentBundleSize = 0;
+            }
+
+            currentBundle.add(fileToBundle.getKey());
+            currentBundleSize += fileToBundle.getValue();
+        }
+        if (!currentBundle.isEmpty()) bundles.add(currentBundle);
+
+        final Map<List<Path>, Future<UploadResult>> bundleUploads = new LinkedHashMap<>();
+        for (int bundleIndex = 0; bundleIndex < bundles.size(); bundleIndex++)
+        {
+            final List<Path> bundle = bundles.get(bundleIndex);
+            final String bundleFileName = "bundle-" + bundleTimestamp + "-" + bundleIndex + ".zip";
+            bundleUploads.put(bundle, uploadSession.submitFile(() ->
+                    uploadBundle(bundle, filesToZip, baseDirectory, destinationPath, bundleFileName, uploadSession)));
+        }
+
+        for (Map.Entry<List<Path>, Future<UploadResult>> bundleUpload : bundleUploads.entrySet())
+        {
+            try
+            {
+                uploadResult.addAll(bundleUpload.getValue().get());
+            } catch (ExecutionException e)
+            {
+                Log.e(LOG_TAG, "Unexpected error while uploading a bundle of files from " + baseDirectory, e.getCause());
+                bundleUpload.getKey().forEach(uploadResult::addFailedFile);
+            } catch (CancellationException e)
+            {
+                bundleUpload.getKey().forEach(uploadResult::addFailedFile);
+            } catch (InterruptedException e)
+            {
+                Log.w(LOG_TAG, "Interrupted while waiting for a bundle of files from " + baseDirectory + " to upload");
+                Thread.currentThread().interrupt();
+                bundleUpload.getKey().forEach(uploadResult::addFailedFile);
+            }
+        }
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, "Bundled " + filesToZip.size() + " files for " + destinationPath + " into " + bundles.size() + " archives, "
+                    + (filesToBundle.size() - filesToZip.size()) + " already present, " + uploadResult.getFailedFiles().size() + " failed");
+        }
+
+        return uploadResult;
+    }
+
+    /**
+     * Leaves out the files that are already in blob storage as a blob of their own, using the same rules as a single
+     * file upload: a blob with a content hash must match the file's content, a blob without one is matched on its name,
+     * and a file that was synced to that blob before and has changed since is always uploaded again.
+     *
+     * @param filesToBundle   The files to bundle, mapped to their size in bytes.
+     * @param baseDirectory   The sync directory that the files are in.
+     * @param destinationPath The Blob Storage path that the files' blobs would be under.
+     * @param uploadSession   The settings to use for the upload.
+     * @param uploadResult    The result to add the files that are already present to.
+     * @return The files that still need to be bundled, mapped to their size in bytes.
+     * @throws StorageException If the listing could not be retrieved from blob storage.
+     * @throws IOException      If the thread was interrupted while waiting to retry a listing call.
+     * @since 1.3.0
+     */
+    private Map<Path, Long> removeFilesAlreadyPresent(Map<Path, Long> filesToBundle, Path baseDirectory, String destinationPath,
+                                                      UploadSession uploadSession, UploadResult uploadResult) throws StorageException, IOException
+    {
+        final Map<String, String> remoteBlobHashes = getRemoteBlobHashes(destinationPath, uploadSession);
+        final SyncStateIndex syncStateIndex = uploadSession.getSyncStateIndex();
+
+        final Map<Path, Long> filesToZip = new LinkedHashMap<>();
+        for (Map.Entry<Path, Long> fileToBundle : filesToBundle.entrySet())
+        {
+            final Path file = fileToBundle.getKey();
+            final String blobName = destinationPath.substring(1) + getRelativeBlobName(baseDirectory, file);
+            final String remoteContentMd5 = remoteBlobHashes.get(blobName);
+
+            if (remoteContentMd5 != null && !blobName.equals(syncStateIndex.getSyncedBlobName(file.toString())))
+            {
+                if (remoteContentMd5.isEmpty())
+                {
+                    uploadResult.addSyncedFile(file, blobName);
+                    continue;
+                }
+
                 try
                 {
-                    boolean blobAlreadyUploaded = false;
-                    CloudBlockBlob blob = container.getBlockBlobReference(destinationPath + file.getFileName());
-                    for (ListBlobItem blobItem : container.listBlobs(destinationPath))
+                    final String localContentMd5 = computeContentMd5(file);
+                    if (localContentMd5.equals(remoteContentMd5))
                     {
-                        // If the item is a blob, not a virtual directory
-                        if (blobItem instanceof CloudBlockBlob)
+                        uploadResult.addSyncedFile(file, blobName, localContentMd5);
+                        continue;
+                    }
+                } catch (NoSuchFileException e)
+                {
+                    // The file is skipped when the bundle is built as well
+                }
+            }
+
+            filesToZip.put(file, fileToBundle.getValue());
+        }
+        return filesToZip;
+    }
+
+    /**
+     * Streams a single zip archive of the provided files straight into a new blob. The archive is never written to
+     * local storage, and only the blocks that are about to be sent are held in memory. Each request that makes up the
+     * upload is retried on its own if it fails with a transient error, so the archive is only built once.
+     *
+     * @param files           The files to put in the archive.
+     * @param fileSizes       The size in bytes of each file when the sync directory was scanned, which is how much of
+     *                        the file is put in the archive.
+     * @param baseDirectory   The sync directory that the files are in.
+     * @param destinationPath The Blob Storage path to store the archive under.
+     * @param bundleFileName  The file name to use for the archive's blob.
+     * @param uploadSession   The settings to use for the upload.
+     * @return The result of the upload. If the archive could not be uploaded then every file is marked as failed.
+     * @since 1.3.0
+     */
+    private UploadResult uploadBundle(List<Path> files, Map<Path, Long> fileSizes, Path baseDirectory, String destinationPath,
+                                      String bundleFileName, UploadSession uploadSession)
+    {
+        final UploadResult uploadResult = new UploadResult();
+        final String blobName = destinationPath.substring(1) + bundleFileName;
+        final Map<Path, String> bundledFiles = new HashMap<>();
+
+        final OperationContext operationContext = uploadSession.newOperationContext();
+        try
+        {
+            final CloudBlockBlob blob = container.getBlockBlobReference(destinationPath + bundleFileName);
+            final StringBuilder bundleIndex = new StringBuilder("name,size,lastModified\n");
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+
+            try (final BlockBlobWriter blockBlobWriter = new BlockBlobWriter(blob, AccessCondition.generateIfNotExistsCondition(), uploadSession,
+                    operationContext))
+            {
+                // The zip stream is only closed once the archive is committed, since closing it writes out the rest of the archive
+                final ZipOutputStream zipOutputStream = new ZipOutputStream(blockBlobWriter);
+                for (Path file : files)
+                {
+                    final InputStream fileInputStream;
+                    try
+                    {
+                        fileInputStream = openFile(file, fileSizes.get(file));
+                    } catch (FileNotFoundException e)
+                    {
+                        Log.w(LOG_TAG, "Skipping " + file + " because it was deleted before it could be bundled");
+                        continue;
+                    }
+
+                    final String entryName = baseDirectory.relativize(file).toString();
+                    final ZipEntry zipEntry = new ZipEntry(entryName);
+                    final long lastModified = Files.getLastModifiedTime(file).toMillis();
+                    zipEntry.setTime(lastModified);
+
+                    final boolean compress = uploadSession.getCompressionFormat(file) != CompressionFormat.NONE;
+                    zipOutputStream.setLevel(compress ? uploadSession.getCompressionLevel() : Deflater.NO_COMPRESSION);
+                    zipOutputStream.putNextEntry(zipEntry);
+
+                    // Each file's own MD5 is recorded so that the retention policy knows its content reached blob storage
+                    final MessageDigest md5Digest = newMd5Digest();
+                    long size = 0;
+                    try (final InputStream inputStream = new DigestInputStream(fileInputStream, md5Digest))
+                    {
+                        int bytesRead;
+                        while ((bytesRead = inputStream.read(buffer)) != -1)
                         {
-                            CloudBlockBlob retrievedBlob = (CloudBlockBlob) blobItem;
-                            if (retrievedBlob.getName().equals(destinationPath.substring(1) + file.getFileName()))
-                            {
-                                if (Log.isLoggable(LOG_TAG, Log.INFO))
-                                {
-                                    Log.i(LOG_TAG, "Blob " + retrievedBlob.getName() + " already present in blob storage - skipping upload.");
-                                }
-                                blobAlreadyUploaded = true;
-                            }
+                            zipOutputStream.write(buffer, 0, bytesRead);
+                            size += bytesRead;
                         }
                     }
-                    if (!blobAlreadyUploaded)
+                    zipOutputStream.closeEntry();
+
+                    bundleIndex.append('"').append(entryName.replace("\"", "\"\"")).append("\",")
+                            .append(size).append(',').append(lastModified).append('\n');
+                    bundledFiles.put(file, Base64.getEncoder().encodeToString(md5Digest.digest()));
+                }
+
+                zipOutputStream.setLevel(Deflater.DEFAULT_COMPRESSION);
+                zipOutputStream.putNextEntry(new ZipEntry(BUNDLE_INDEX_ENTRY_NAME));
+                zipOutputStream.write(bundleIndex.toString().getBytes(StandardCharsets.UTF_8));
+                zipOutputStream.closeEntry();
+                zipOutputStream.finish();
+
+                blockBlobWriter.commit();
+                zipOutputStream.close();
+            }
+
+            if (Log.isLoggable(LOG_TAG, Log.INFO))
+            {
+                Log.i(LOG_TAG, "Uploaded " + bundledFiles.size() + " files in the bundle " + blobName);
+            }
+
+            for (Path file : files)
+            {
+                if (bundledFiles.containsKey(file))
+                {
+                    uploadResult.addSyncedFile(file, blobName, bundledFiles.get(file));
+                } else
+                {
+                    uploadResult.addFailedFile(file);
+                }
+            }
+            return uploadResult;
+        } catch (URISyntaxException e)
+        {
+            Log.e(LOG_TAG, "Bad URI.", e);
+        } catch (StorageException e)
+        {
+            Log.e(LOG_TAG, "Could not access blob storage.", e);
+        } catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Error while uploading the bundle " + blobName, e);
+        } finally
+        {
+            uploadSession.recordRequests(operationContext);
+        }
+
+        files.forEach(uploadResult::addFailedFile);
+        return uploadResult;
+    }
+
+    /**
+     * Waits for each of the provided file uploads to complete and adds its outcome to the upload result.
+     *
+     * @param uploads      The file uploads, which each return the result for their file.
+     * @param uploadResult The result to add the outcome of each upload to.
+     * @since 1.3.0
+     */
+    private static void waitForFileUploads(Map<Path, Future<UploadResult>> uploads, UploadResult uploadResult)
+    {
+        for (Map.Entry<Path, Future<UploadResult>> upload : uploads.entrySet())
+        {
+            try
+            {
+                uploadResult.addAll(upload.getValue().get());
+            } catch (ExecutionException e)
+            {
+                Log.e(LOG_TAG, "Unexpected error while uploading " + upload.getKey(), e.getCause());
+                uploadResult.addFailedFile(upload.getKey());
+            } catch (CancellationException e)
+            {
+                uploadResult.addFailedFile(upload.getKey());
+            } catch (InterruptedException e)
+            {
+                Log.w(LOG_TAG, "Interrupted while waiting for " + upload.getKey() + " to upload");
+                Thread.currentThread().interrupt();
+                uploadResult.addFailedFile(upload.getKey());
+            }
+        }
+    }
+
+    /**
+     * Uploads a single file to blob storage unless it is already present with the same content. This method is safe to
+     * call from multiple upload threads at the same time.
+     * <p>
+     * The sync state index has already skipped any file whose size and last modified time have not changed since it
+     * was synced, so a file that reaches this method and has a content hash in the index has changed and is uploaded
+     * again. If the index has no content hash for the file, but the blob exists and has one, the file is read once to
+     * hash it and is only uploaded if the hashes differ. A blob is only ever replaced by the file that the index
+     * records as synced to it.
+     *
+     * @param file             The file to upload.
+     * @param baseDirectory    The sync directory that the file is in.
+     * @param destinationPath  The Blob Storage path to store the file under.
+     * @param remoteBlobHashes The names of the blobs known to be present in blob storage, mapped to their content hash.
+     * @param uploadSession    The settings and worker threads to use for the upload.
+     * @return The result for the file, with the blob name and content hash if the file is present in blob storage.
+     * @since 1.3.0
+     */
+    private UploadResult uploadFile(Path file, Path baseDirectory, String destinationPath, Map<String, String> remoteBlobHashes,
+                                    UploadSession uploadSession)
+    {
+        final UploadResult uploadResult = new UploadResult();
+        final SyncStateIndex syncStateIndex = uploadSession.getSyncStateIndex();
+        final String path = file.toString();
+        final String relativeBlobName = getRelativeBlobName(baseDirectory, file);
+        final String blobName = destinationPath.substring(1) + relativeBlobName;
+
+        final OperationContext operationContext = uploadSession.newOperationContext();
+        try
+        {
+            // A file that was synced to this blob has changed since, otherwise it would not need uploading
+            boolean replace = blobName.equals(syncStateIndex.getSyncedBlobName(path));
+            final String syncedContentMd5 = replace ? syncStateIndex.getSyncedContentMd5(path) : null;
+
+            final String remoteContentMd5 = remoteBlobHashes.get(blobName);
+            if (remoteContentMd5 != null)
+            {
+                if (syncedContentMd5 == null && !remoteContentMd5.isEmpty())
+                {
+                    final String localContentMd5 = computeContentMd5(file);
+                    if (localContentMd5.equals(remoteContentMd5))
                     {
-                        blob.upload(new FileInputStream(file.toFile()), file.toFile().length());
+                        if (Log.isLoggable(LOG_TAG, Log.INFO))
+                        {
+                            Log.i(LOG_TAG, "Blob " + blobName + " already present in blob storage with the same content - skipping upload.");
+                        }
+                        uploadResult.addSyncedFile(file, blobName, localContentMd5);
+                        return uploadResult;
                     }
-                } catch (URISyntaxException e)
+                } else if (!replace)
                 {
-                    Log.e(LOG_TAG, "Bad URI.", e);
-                } catch (StorageException e)
+                    // Without a hash on either side the content can't be compared, so fall back to matching on the name
+                    if (Log.isLoggable(LOG_TAG, Log.INFO))
+                    {
+                        Log.i(LOG_TAG, "Blob " + blobName + " already present in blob storage - skipping upload.");
+                    }
+                    uploadResult.addSyncedFile(file, blobName);
+                    return uploadResult;
+                }
+
+                if (Log.isLoggable(LOG_TAG, Log.INFO))
                 {
-                    Log.e(LOG_TAG, "Could not access blob storage.", e);
-                } catch (FileNotFoundException e)
+                    Log.i(LOG_TAG, "Blob " + blobName + " has changed locally - uploading it again.");
+                }
+                replace = true;
+            }
+
+            final CloudBlockBlob blob = container.getBlockBlobReference(destinationPath + relativeBlobName);
+            final boolean conditionalCreate = uploadSession.getExistenceCheckMode() == ExistenceCheckMode.CONDITIONAL_CREATE && !replace;
+            final AccessCondition accessCondition = conditionalCreate ? AccessCondition.generateIfNotExistsCondition() : null;
+            final long fileLength = Files.size(file);
+
+            if (conditionalCreate && fileLength >= CONDITIONAL_CREATE_CHECK_THRESHOLD && isBlobKnownToExist(blob, uploadSession, operationContext))
+            {
+                if (Log.isLoggable(LOG_TAG, Log.INFO))
+                {
+                    Log.i(LOG_TAG, "Blob " + blobName + " already present in blob storage - skipping upload.");
+                }
+                remoteBlobHashes.put(blobName, "");
+                uploadResult.addSyncedFile(file, blobName);
+                return uploadResult;
+            }
+
+            String contentMd5 = null;
+            try
+            {
+                final CompressionFormat compressionFormat = uploadSession.getCompressionFormat(file);
+                if (compressionFormat != CompressionFormat.NONE)
                 {
-                    Log.e(LOG_TAG, "File could not be uploaded", e);
-                } catch (IOException e)
+                    contentMd5 = uploadCompressed(blob, file, fileLength, compressionFormat, accessCondition, uploadSession, operationContext);
+                } else if (fileLength >= uploadSession.getBlockUploadThreshold())
+                {
+                    contentMd5 = uploadInBlocks(blob, file, fileLength, accessCondition, uploadSession, operationContext);
+                } else
+                {
+                    try (final InputStream inputStream = openFile(file, fileLength);
+                         final BlockBlobWriter blockBlobWriter = new BlockBlobWriter(blob, accessCondition, uploadSession, operationContext))
+                    {
+                        copy(inputStream, blockBlobWriter);
+                        contentMd5 = blockBlobWriter.commit();
+                    }
+                }
+            } catch (StorageException | IOException e)
+            {
+                // When using the conditional create mode, the service rejects the upload if the blob already exists
+                if (!conditionalCreate || !isBlobAlreadyPresent(e)) throw e;
+
+                if (Log.isLoggable(LOG_TAG, Log.INFO))
+                {
+                    Log.i(LOG_TAG, "Blob " + blobName + " already present in blob storage - upload rejected.");
+                }
+            }
+
+            remoteBlobHashes.put(blobName, contentMd5 == null ? "" : contentMd5);
+            uploadResult.addSyncedFile(file, blobName, contentMd5);
+            return uploadResult;
+        } catch (URISyntaxException e)
+        {
+            Log.e(LOG_TAG, "Bad URI.", e);
+        } catch (StorageException e)
+        {
+            Log.e(LOG_TAG, "Could not access blob storage.", e);
+        } catch (FileNotFoundException e)
+        {
+            Log.e(LOG_TAG, "File could not be uploaded", e);
+        } catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Error while processing file " + file.getFileName(), e);
+        } finally
+        {
+            uploadSession.recordRequests(operationContext);
+        }
+
+        uploadResult.addFailedFile(file);
+        return uploadResult;
+    }
+
+    /**
+     * Checks if a blob exists before a large file is uploaded to it with a conditional create, so that a file that is
+     * already present is not sent in full only for the service to reject it. The conditional create still guards
+     * against the blob being created after this check.
+     *
+     * @param blob             The blob to check for.
+     * @param uploadSession    The settings and worker threads to use for the upload.
+     * @param operationContext The context used to track the requests made to blob storage.
+     * @return True if the blob exists. False if it does not, or if the check could not be made, for example because the
+     * SAS does not grant read permission.
+     * @throws IOException If the thread was interrupted while waiting to retry the request.
+     * @since 1.3.0
+     */
+    private static boolean isBlobKnownToExist(CloudBlockBlob blob, UploadSession uploadSession, OperationContext operationContext)
+            throws IOException
+    {
+        try
+        {
+            return uploadSession.getRetryPolicy().execute("check if " + blob.getName() + " exists",
+                    () -> blob.exists(null, null, operationContext));
+        } catch (StorageException e)
+        {
+            if (Log.isLoggable(LOG_TAG, Log.INFO))
+            {
+                Log.i(LOG_TAG, "Could not check if " + blob.getName() + " exists (status " + e.getHttpStatusCode()
+                        + ") - relying on the conditional create.");
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Compresses a file while it is uploaded. The compressed length is not known up front, so the compressed stream is
+     * split into blocks as it is read, which means only a few blocks are ever held in memory no matter how large the
+     * file is. The blob's Content-Encoding is set so that clients downloading the blob can decompress it, and the
+     * uncompressed size is recorded in the blob's metadata. The MD5 of the uncompressed file is worked out while it is
+     * read and is added to the metadata before the blob is committed.
+     *
+     * @param blob              The blob to upload the file to.
+     * @param file              The file to upload.
+     * @param fileLength        The uncompressed length of the file in bytes.
+     * @param compressionFormat The format to compress the file with.
+     * @param accessCondition   The access condition to apply to the upload, or null for none.
+     * @param uploadSession     The settings and worker threads to use for the upload.
+     * @param operationContext  The context used to track the requests made to blob storage.
+     * @return The Base64 encoded MD5 of the uncompressed file.
+     * @throws StorageException If the file could not be uploaded.
+     * @throws IOException      If the file could not be read.
+     * @since 1.3.0
+     */
+    private static String uploadCompressed(CloudBlockBlob blob, Path file, long fileLength, CompressionFormat compressionFormat,
+                                         AccessCondition accessCondition, UploadSession uploadSession, OperationContext operationContext)
+            throws StorageException, IOException
+    {
+        blob.getProperties().setContentEncoding(compressionFormat.getContentEncoding());
+        blob.getMetadata().put(ORIGINAL_SIZE_METADATA_KEY, Long.toString(fileLength));
+
+        final MessageDigest md5Digest = newMd5Digest();
+        try (final InputStream compressedInputStream = new CompressingInputStream(new DigestInputStream(openFile(file, fileLength), md5Digest),
+                compressionFormat, uploadSession.getCompressionLevel());
+             final BlockBlobWriter blockBlobWriter = new BlockBlobWriter(blob, accessCondition, uploadSession, operationContext))
+        {
+            copy(compressedInputStream, blockBlobWriter);
+
+            final String contentMd5 = Base64.getEncoder().encodeToString(md5Digest.digest());
+            blob.getMetadata().put(ORIGINAL_MD5_METADATA_KEY, contentMd5);
+            blockBlobWriter.commit();
+
+            return contentMd5;
+        }
+    }
+
+    /**
+     * Appends the bytes of a single file that are not yet in its append blob. The append blob is created the first
+     * time the file is synced, and is recreated if the local file is now shorter than its blob, which means the file
+     * was replaced rather than appended to. This method is safe to call from multiple upload threads at the same time.
+     *
+     * @param file            The file to sync.
+     * @param length          The length in bytes of the file to sync up to. Any data written after the file was
+     *                        scanned is left for the next sync.
+     * @param baseDirectory   The sync directory that the file is in.
+     * @param destinationPath The Blob Storage path to store the file under.
+     * @param uploadSession   The settings and worker threads to use for the upload.
+     * @return The result for the file, with the blob name if the blob now holds the first length bytes of the file.
+     * @since 1.3.0
+     */
+    private UploadResult appendFile(Path file, long length, Path baseDirectory, String destinationPath, UploadSession uploadSession)
+    {
+        final UploadResult uploadResult = new UploadResult();
+        final SyncStateIndex syncStateIndex = uploadSession.getSyncStateIndex();
+        final RetryPolicy retryPolicy = uploadSession.getRetryPolicy();
+        final String path = file.toString();
+        final String relativeBlobName = getRelativeBlobName(baseDirectory, file);
+        final String blobName = destinationPath.substring(1) + relativeBlobName;
+
+        final OperationContext operationContext = uploadSession.newOperationContext();
+        try
+        {
+            final CloudAppendBlob blob = container.getAppendBlobReference(destinationPath + relativeBlobName);
+
+            long appendOffset = syncStateIndex.getAppendedLength(path, blobName);
+            if (appendOffset < 0 || appendOffset > length) appendOffset = getRemoteLength(blob, retryPolicy, operationContext);
+            if (appendOffset < 0 || appendOffset > length)
+            {
+                retryPolicy.execute("create " + blobName, () -> {
+                    blob.createOrReplace(null, null, operationContext);
+                    return null;
+                });
+                appendOffset = 0;
+                syncStateIndex.recordAppendedLength(path, blobName, appendOffset);
+            }
+
+            if (Log.isLoggable(LOG_TAG, Log.INFO))
+            {
+                Log.i(LOG_TAG, "Appending " + (length - appendOffset) + " bytes of " + file.getFileName() + " to " + blobName);
+            }
+
+            try (final FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ))
+            {
+                while (appendOffset < length)
                 {
-                    Log.e(LOG_TAG, "Error while processing file " + file.getFileName(), e);
+                    uploadSession.checkCancelled();
+
+                    final int appendLength = (int) Math.min(MAX_APPEND_BLOCK_SIZE, length - appendOffset);
+                    final byte[] data = readBlock(fileChannel, appendOffset, appendLength);
+
+                    final AccessCondition accessCondition = new AccessCondition();
+                    accessCondition.setIfAppendPositionEqual(appendOffset);
+                    try
+                    {
+                        retryPolicy.execute("append to " + blobName, () ->
+                                blob.appendBlock(uploadSession.monitor(new ByteArrayInputStream(data), operationContext), appendLength, accessCondition,
+                                        null, operationContext));
+                        appendOffset += appendLength;
+                    } catch (StorageException e)
+                    {
+                        // The blob length does not match the recorded length, for example because an earlier append
+                        // reached blob storage but the response was lost, so carry on from where the blob actually is
+                        if (e.getHttpStatusCode() != HttpURLConnection.HTTP_PRECON_FAILED) throw e;
+
+                        final long remoteLength = getRemoteLength(blob, retryPolicy, operationContext);
+                        if (remoteLength < 0 || remoteLength > length || remoteLength == appendOffset) throw e;
+
+                        Log.w(LOG_TAG, "The append blob " + blobName + " is " + remoteLength + " bytes long, expected " + appendOffset);
+                        appendOffset = remoteLength;
+                    }
+
+                    syncStateIndex.recordAppendedLength(path, blobName, appendOffset);
                 }
+            }
+
+            uploadResult.addSyncedFile(file, blobName);
+            return uploadResult;
+        } catch (URISyntaxException e)
+        {
+            Log.e(LOG_TAG, "Bad URI.", e);
+        } catch (StorageException e)
+        {
+            Log.e(LOG_TAG, "Could not append to the blob " + blobName, e);
+        } catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Error while processing file " + file.getFileName(), e);
+        } finally
+        {
+            uploadSession.recordRequests(operationContext);
+        }
+
+        uploadResult.addFailedFile(file);
+        return uploadResult;
+    }
+
+    /**
+     * Gets the current length of an append blob from blob storage.
+     *
+     * @param blob             The append blob.
+     * @param retryPolicy      The policy to use for retrying the request if it fails with a transient error.
+     * @param operationContext The context used to track the requests made to blob storage.
+     * @return The length of the blob in bytes, or -1 if the blob does not exist.
+     * @throws StorageException If the blob properties could not be retrieved.
+     * @throws IOException      If the thread was interrupted while waiting to retry the request.
+     * @since 1.3.0
+     */
+    private static long getRemoteLength(CloudAppendBlob blob, RetryPolicy retryPolicy, OperationContext operationContext)
+            throws StorageException, IOException
+    {
+        try
+        {
+            retryPolicy.execute("get the properties of " + blob.getName(), () -> {
+                blob.downloadAttributes(null, null, operationContext);
+                return null;
             });
+            return blob.getProperties().getLength();
+        } catch (StorageException e)
+        {
+            if (e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) return -1;
+            throw e;
+        }
+    }
+
+    /**
+     * Uploads a large file by splitting it into fixed size blocks, uploading the blocks concurrently on the upload
+     * session's block executor, and then committing the block list once every block has been uploaded. The blocks are
+     * read in order on the calling thread so that the MD5 of the file can be worked out in the same pass, and each
+     * block is handed to a block worker to upload. Reading waits while all of the upload session's block buffers are in
+     * use, so the files being uploaded at the same time share one limit on the blocks held in memory.
+     * <p>
+     * Every uploaded block is recorded in the upload journal. If a previous attempt to upload this version of the file
+     * was interrupted, only the blocks that are missing from the blob's uncommitted block list are sent again.
+     * <p>
+     * When a file that was uploaded in blocks before is replacing its blob, the MD5 of each block is compared with the
+     * hash recorded in the sync state index for the last upload. Blocks that have not changed are not sent again, and
+     * the new block list refers to the blob's existing committed blocks instead.
+     *
+     * @param blob             The blob to upload the file to.
+     * @param file             The file to upload.
+     * @param fileLength       The length of the file in bytes.
+     * @param accessCondition  The access condition to apply when committing the block list, or null to replace any
+     *                         existing blob.
+     * @param uploadSession    The settings and worker threads to use for the upload.
+     * @param operationContext The context used to track the requests made to blob storage.
+     * @return The Base64 encoded MD5 of the file, which is also set as the blob's Content-MD5 when it is committed.
+     * @throws StorageException If a block could not be uploaded or the block list could not be committed.
+     * @throws IOException      If the file could not be read.
+     * @since 1.3.0
+     */
+    private String uploadInBlocks(CloudBlockBlob blob, Path file, long fileLength, AccessCondition accessCondition, UploadSession uploadSession,
+                                OperationContext operationContext) throws StorageException, IOException
+    {
+        final SyncStateIndex syncStateIndex = uploadSession.getSyncStateIndex();
+        final String path = file.toString();
+        final int blockSize = uploadSession.getBlockSize();
+        final int blockCount = (int) ((fileLength + blockSize - 1) / blockSize);
+
+        final Set<String> resumableBlockIds = getResumableBlockIds(blob, file, fileLength, uploadSession, operationContext);
+        final List<String> reusableBlockHashes = accessCondition == null
+                ? getReusableBlockHashes(blob, path, uploadSession, operationContext) : Collections.emptyList();
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, "Uploading " + file.getFileName() + " in " + blockCount + " blocks, " + resumableBlockIds.size() + " already uploaded");
+        }
+
+        final List<BlockEntry> blockList = new ArrayList<>(blockCount);
+        final List<Future<?>> blockUploads = new ArrayList<>(blockCount);
+        final List<String> blockHashes = new ArrayList<>(blockCount);
+        final MessageDigest md5Digest = newMd5Digest();
+        final MessageDigest blockMd5Digest = newMd5Digest();
+        final AtomicBoolean blockUploadFailed = new AtomicBoolean();
+        int reusedBlockCount = 0;
+
+        try (final FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            for (int blockIndex = 0; blockIndex < blockCount && !blockUploadFailed.get(); blockIndex++)
+            {
+                uploadSession.checkCancelled();
+
+                final String blockId = getBlockId(blockIndex);
+                final long offset = (long) blockIndex * blockSize;
+                final int length = (int) Math.min(blockSize, fileLength - offset);
+
+                // Blocks that were uploaded by an earlier attempt still need to be read to work out the MD5
+                final byte[] block = readBlock(fileChannel, offset, length);
+                md5Digest.update(block);
+
+                final String blockHash = Base64.getEncoder().encodeToString(blockMd5Digest.digest(block));
+                blockHashes.add(blockHash);
+                if (blockIndex < reusableBlockHashes.size() && blockHash.equals(reusableBlockHashes.get(blockIndex)))
+                {
+                    blockList.add(new BlockEntry(blockId, BlockSearchMode.COMMITTED));
+                    reusedBlockCount++;
+                    continue;
+                }
+
+                blockList.add(new BlockEntry(blockId));
+                if (resumableBlockIds.contains(blockId)) continue;
+
+                blockUploads.add(uploadSession.submitBlock(() -> {
+                    try
+                    {
+                        uploadBlock(blob, block, blockId, uploadSession);
+                        syncStateIndex.journalUploadedBlock(path, blockId, offset, length);
+                        return null;
+                    } catch (Exception e)
+                    {
+                        blockUploadFailed.set(true);
+                        throw e;
+                    }
+                }));
+            }
+
+            waitForBlockUploads(blockUploads);
+        }
+
+        if (reusedBlockCount > 0 && Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, "Reused " + reusedBlockCount + " unchanged blocks of " + file.getFileName() + " from the existing blob");
+        }
+
+        final String contentMd5 = Base64.getEncoder().encodeToString(md5Digest.digest());
+        blob.getProperties().setContentMD5(contentMd5);
+
+        uploadSession.getRetryPolicy().execute("commit the block list for " + blob.getName(), () -> {
+            blob.commitBlockList(blockList, accessCondition, null, operationContext);
+            return null;
+        });
+        syncStateIndex.clearUploadJournal(path);
+        syncStateIndex.recordSyncedBlockHashes(path, blob.getName(), blockSize, blockHashes);
+
+        return contentMd5;
+    }
+
+    /**
+     * Checks the upload journal for blocks of this version of the file that were uploaded by a previous attempt, and
+     * confirms that blob storage still has them in the blob's uncommitted block list. Blob storage discards
+     * uncommitted blocks after a week, so the journal alone can't be trusted.
+     *
+     * @param blob             The blob the file is being uploaded to.
+     * @param file             The file being uploaded.
+     * @param fileLength       The length of the file in bytes.
+     * @param uploadSession    The settings to use for the upload.
+     * @param operationContext The context used to track the requests made to blob storage.
+     * @return The IDs of the blocks that don't need to be uploaded again.
+     * @throws IOException If the last modified time of the file could not be read.
+     * @since 1.3.0
+     */
+    private Set<String> getResumableBlockIds(CloudBlockBlob blob, Path file, long fileLength, UploadSession uploadSession,
+                                             OperationContext operationContext) throws IOException
+    {
+        final Map<String, Long> journaledBlocks = uploadSession.getSyncStateIndex().startUploadJournal(file.toString(), fileLength,
+                Files.getLastModifiedTime(file).toMillis(), blob.getName(), uploadSession.getBlockSize());
+
+        final Set<String> resumableBlockIds = new HashSet<>();
+        if (journaledBlocks.isEmpty()) return resumableBlockIds;
+
+        try
+        {
+            final List<BlockEntry> uncommittedBlocks = uploadSession.getRetryPolicy().execute("get the uncommitted blocks for " + blob.getName(),
+                    () -> blob.downloadBlockList(BlockListingFilter.UNCOMMITTED, null, null, operationContext));
+            for (BlockEntry uncommittedBlock : uncommittedBlocks)
+            {
+                final Long journaledLength = journaledBlocks.get(uncommittedBlock.getId());
+                if (journaledLength != null && journaledLength == uncommittedBlock.getSize())
+                {
+                    resumableBlockIds.add(uncommittedBlock.getId());
+                }
+            }
+        } catch (StorageException e)
+        {
+            // A blob that has never been committed and has no uncommitted blocks left does not exist yet
+            if (e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND)
+            {
+                Log.w(LOG_TAG, "Could not get the uncommitted blocks for " + blob.getName() + ", uploading all the blocks", e);
+            }
+        }
+
+        return resumableBlockIds;
+    }
+
+    /**
+     * Gets the block hashes recorded for the last upload of the file, keeping only the blocks that are still in the
+     * blob's committed block list so that they can be reused in the new block list.
+     *
+     * @param blob             The blob the file is being uploaded to.
+     * @param path             The absolute path to the file being uploaded.
+     * @param uploadSession    The settings to use for the upload.
+     * @param operationContext The context used to track the requests made to blob storage.
+     * @return The Base64 encoded MD5 of each block in the last upload, in block order, with null for any block that
+     * can't be reused. The list is empty if no blocks can be reused.
+     * @since 1.3.0
+     */
+    private List<String> getReusableBlockHashes(CloudBlockBlob blob, String path, UploadSession uploadSession, OperationContext operationContext)
+    {
+        final List<String> syncedBlockHashes = uploadSession.getSyncStateIndex().getSyncedBlockHashes(path, blob.getName(),
+                uploadSession.getBlockSize());
+        if (syncedBlockHashes.isEmpty()) return syncedBlockHashes;
+
+        try
+        {
+            final List<BlockEntry> committedBlocks = uploadSession.getRetryPolicy().execute("get the committed blocks for " + blob.getName(),
+                    () -> blob.downloadBlockList(BlockListingFilter.COMMITTED, null, null, operationContext));
+
+            final Set<String> committedBlockIds = new HashSet<>();
+            committedBlocks.forEach(committedBlock -> committedBlockIds.add(committedBlock.getId()));
+
+            final List<String> reusableBlockHashes = new ArrayList<>(syncedBlockHashes.size());
+            for (int blockIndex = 0; blockIndex < syncedBlockHashes.size(); blockIndex++)
+            {
+                reusableBlockHashes.add(committedBlockIds.contains(getBlockId(blockIndex)) ? syncedBlockHashes.get(blockIndex) : null);
+            }
+
+            return reusableBlockHashes;
+        } catch (StorageException e)
+        {
+            // The blob may have been deleted since the file was last uploaded
+            if (e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND)
+            {
+                Log.w(LOG_TAG, "Could not get the committed blocks for " + blob.getName() + ", uploading all the blocks", e);
+            }
         } catch (IOException e)
         {
-            Log.e(LOG_TAG, "Upload to Azure blob storage failed.", e);
+            Log.w(LOG_TAG, "Could not get the committed blocks for " + blob.getName() + ", uploading all the blocks", e);
         }
+
+        return Collections.emptyList();
+    }
+
+    /**
+     * Uploads a single block to the blob as an uncommitted block.
+     *
+     * @param blob          The blob to upload the block to.
+     * @param block         The content of the block.
+     * @param blockId       The ID of the block.
+     * @param uploadSession The upload session used to track the requests made to blob storage.
+     * @throws StorageException If the block could not be uploaded.
+     * @throws IOException      If the thread was interrupted while waiting to retry the upload.
+     * @since 1.3.0
+     */
+    static void uploadBlock(CloudBlockBlob blob, byte[] block, String blockId, UploadSession uploadSession)
+            throws StorageException, IOException
+    {
+        final OperationContext operationContext = uploadSession.newOperationContext();
+        try
+        {
+            uploadSession.getRetryPolicy().execute("upload block " + blockId + " of " + blob.getName(), () -> {
+                blob.uploadBlock(blockId, uploadSession.monitor(new ByteArrayInputStream(block), operationContext), block.length, null, null,
+                        operationContext);
+                return null;
+            });
+        } finally
+        {
+            uploadSession.recordRequests(operationContext);
+        }
+    }
+
+    /**
+     * Reads a range of bytes from a file using positional reads.
+     *
+     * @param fileChannel The channel to read from.
+     * @param offset      The position in the file where the range starts.
+     * @param length      The length of the range in bytes.
+     * @return The bytes that were read.
+     * @throws IOException If the range could not be read, including if the file is now shorter than the range.
+     * @since 1.3.0
+     */
+    private static byte[] readBlock(FileChannel fileChannel, long offset, int length) throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+        {
+            if (fileChannel.read(buffer, offset + buffer.position()) == -1)
+            {
+                throw new EOFException("The file was truncated while reading " + length + " bytes at offset " + offset);
+            }
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * Waits for all the provided block uploads to complete. If any block fails, the remaining block uploads are
+     * cancelled and the failure is rethrown.
+     *
+     * @param blockUploads The block uploads to wait for.
+     * @throws StorageException If any block failed to upload because of a storage error.
+     * @throws IOException      If any block failed to upload for any other reason.
+     * @since 1.3.0
+     */
+    static void waitForBlockUploads(List<Future<?>> blockUploads) throws StorageException, IOException
+    {
+        try
+        {
+            for (Future<?> blockUpload : blockUploads)
+            {
+                blockUpload.get();
+            }
+        } catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            if (cause instanceof StorageException) throw (StorageException) cause;
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Unexpected error while uploading a block", cause);
+        } catch (CancellationException e)
+        {
+            throw new InterruptedIOException("The block uploads were cancelled");
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the blocks to upload");
+        } finally
+        {
+            blockUploads.forEach(blockUpload -> blockUpload.cancel(true));
+        }
+    }
+
+    /**
+     * Opens a file for an upload. The stream ends at the length the file had when the upload was planned, so the
+     * upload never picks up data that is appended to the file while it is being sent.
+     *
+     * @param file   The file to open.
+     * @param length The number of bytes of the file to read.
+     * @return The stream to read the file from.
+     * @throws FileNotFoundException If the file could not be opened.
+     * @since 1.3.0
+     */
+    private static InputStream openFile(Path file, long length) throws FileNotFoundException
+    {
+        return new BoundedInputStream(new FileInputStream(file.toFile()), length);
+    }
+
+    /**
+     * Works out the name of a file's blob under the destination path. Files in subdirectories of the sync directory
+     * keep their relative path, so that files with the same name in different directories never share a blob. Files
+     * directly in the sync directory are named the same as they always have been.
+     *
+     * @param baseDirectory The sync directory that the file is in.
+     * @param file          The file to upload.
+     * @return The path of the file relative to the sync directory, using forward slashes.
+     * @since 1.3.0
+     */
+    private static String getRelativeBlobName(Path baseDirectory, Path file)
+    {
+        return baseDirectory.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Copies all the data from one stream to another.
+     *
+     * @param inputStream  The stream to read from.
+     * @param outputStream The stream to write to.
+     * @throws IOException If the data could not be read or written.
+     * @since 1.3.0
+     */
+    private static void copy(InputStream inputStream, OutputStream outputStream) throws IOException
+    {
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1)
+        {
+            outputStream.write(buffer, 0, bytesRead);
+        }
+    }
+
+    /**
+     * Checks if an upload failed because the blob already exists, which is how blob storage rejects an upload that
+     * uses the conditional create access condition. The storage error is looked for in the causes of an I/O error as
+     * well, since the storage SDK's streams report errors from blob storage that way.
+     *
+     * @param e The error that the upload failed with.
+     * @return True if the blob already exists.
+     * @since 1.3.0
+     */
+    static boolean isBlobAlreadyPresent(Exception e)
+    {
+        final StorageException storageException = RetryPolicy.findStorageException(e);
+        if (storageException == null) return false;
+
+        final int statusCode = storageException.getHttpStatusCode();
+        return statusCode == HttpURLConnection.HTTP_CONFLICT || statusCode == HttpURLConnection.HTTP_PRECON_FAILED;
+    }
+
+    /**
+     * Reads a whole file to work out the MD5 of its content.
+     *
+     * @param file The file to hash.
+     * @return The Base64 encoded MD5 of the file, in the same form as a blob's Content-MD5.
+     * @throws IOException If the file could not be read.
+     * @since 1.3.0
+     */
+    private static String computeContentMd5(Path file) throws IOException
+    {
+        final MessageDigest md5Digest = newMd5Digest();
+        try (final InputStream inputStream = new DigestInputStream(Files.newInputStream(file), md5Digest))
+        {
+            final byte[] buffer = new byte[HASH_BUFFER_SIZE];
+            //noinspection StatementWithEmptyBody
+            while (inputStream.read(buffer) != -1)
+            {
+            }
+        }
+
+        return Base64.getEncoder().encodeToString(md5Digest.digest());
+    }
+
+    static MessageDigest newMd5Digest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("MD5 is not supported on this device", e);
+        }
+    }
+
+    /**
+     * Block IDs must be Base64 encoded and all the block IDs for a blob must be the same length, so the block index is
+     * zero padded to a fixed width before it is encoded.
+     *
+     * @param blockIndex The index of the block in the file.
+     * @return The block ID to use for the block.
+     * @since 1.3.0
+     */
+    static String getBlockId(int blockIndex)
+    {
+        return Base64.getEncoder().encodeToString(String.format(Locale.US, "%06d", blockIndex).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Gets the manifest of the blobs that are already present under the provided destination path. The blobs are only
+     * listed the first time the manifest is needed in an upload session, so the single file uploads and the bundles of
+     * a sync directory share one listing.
+     *
+     * @param destinationPath The Blob Storage path to list the blobs under.
+     * @param uploadSession   The upload session to keep the manifest in.
+     * @return The names of all the block blobs under the destination path, mapped to the Base64 encoded MD5 of their
+     * content, or to an empty string if the blob has no content hash.
+     * @throws StorageException If the listing could not be retrieved from blob storage.
+     * @throws IOException      If the thread was interrupted while waiting to retry a listing call.
+     * @since 1.3.0
+     */
+    private Map<String, String> getRemoteBlobHashes(String destinationPath, UploadSession uploadSession) throws StorageException, IOException
+    {
+        final Map<String, String> listedBlobHashes = uploadSession.getRemoteBlobHashes(destinationPath);
+        if (listedBlobHashes != null) return listedBlobHashes;
+
+        final OperationContext operationContext = uploadSession.newOperationContext();
+        try
+        {
+            final Map<String, String> blobHashes = listRemoteBlobHashes(destinationPath, uploadSession.getRetryPolicy(), operationContext);
+            uploadSession.putRemoteBlobHashes(destinationPath, blobHashes);
+            return blobHashes;
+        } finally
+        {
+            uploadSession.recordRequests(operationContext);
+        }
+    }
+
+    /**
+     * Builds a manifest of the blobs that are already present under the provided destination path, including the blobs
+     * of files in subdirectories of the sync directory. The listing is
+     * pulled down one segment at a time so that the full listing response is never held in memory, and only the blob
+     * names and content hashes are kept. For blobs that were compressed during upload, the hash of the original file
+     * is taken from the blob's metadata, because the blob's own Content-MD5 is the hash of the compressed data.
+     *
+     * @param destinationPath  The Blob Storage path to list the blobs under.
+     * @param retryPolicy      The policy to use for retrying a listing call that fails with a transient error.
+     * @param operationContext The context used to track the requests made to blob storage.
+     * @return The names of all the block blobs under the destination path, mapped to the Base64 encoded MD5 of their
+     * content, or to an empty string if the blob has no content hash. The returned map can be safely updated from
+     * multiple upload threads.
+     * @throws StorageException If the listing could not be retrieved from blob storage.
+     * @throws IOException      If the thread was interrupted while waiting to retry a listing call.
+     * @since 1.3.0
+     */
+    private Map<String, String> listRemoteBlobHashes(String destinationPath, RetryPolicy retryPolicy, OperationContext operationContext)
+            throws StorageException, IOException
+    {
+        final Map<String, String> blobHashes = new ConcurrentHashMap<>();
+
+        ResultContinuation continuationToken = null;
+        do
+        {
+            final ResultContinuation segmentToken = continuationToken;
+            final ResultSegment<ListBlobItem> segment = retryPolicy.execute("list the blobs under " + destinationPath,
+                    () -> container.listBlobsSegmented(destinationPath, true, EnumSet.of(BlobListingDetails.METADATA), LISTING_SEGMENT_SIZE,
+                            segmentToken, null, operationContext));
+
+            for (ListBlobItem blobItem : segment.getResults())
+            {
+                // If the item is a blob, not a virtual directory
+                if (blobItem instanceof CloudBlockBlob)
+                {
+                    final CloudBlockBlob blob = (CloudBlockBlob) blobItem;
+                    String contentMd5 = blob.getMetadata().get(ORIGINAL_MD5_METADATA_KEY);
+                    if (contentMd5 == null) contentMd5 = blob.getProperties().getContentMD5();
+
+                    blobHashes.put(blob.getName(), contentMd5 == null ? "" : contentMd5);
+                }
+            }
+
+            continuationToken = segment.getContinuationToken();
+        } while (continuationToken != null);
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, "Found " + blobHashes.size() + " blobs already present under " + destinationPath);
+        }
+
+        return blobHashes;
     }
 }
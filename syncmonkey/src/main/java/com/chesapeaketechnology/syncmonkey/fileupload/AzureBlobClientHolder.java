@@ -0,0 +1,51 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.util.Log;
+
+/**
+ * Keeps the {@link AzureBlob} client alive across syncs so that the container reference, and the HTTP connections the
+ * storage SDK keeps open behind it, are reused instead of being set up again for every sync. The SAS URL is checked
+ * at the start of each sync and the client is only rebuilt when it has changed, which means a SAS URL that is rotated
+ * through MDM or the settings is picked up by the next sync without restarting the sync process.
+ * <p>
+ * The SAS URL includes the container, so a change of container is also a change of SAS URL.
+ *
+ * @since 1.3.0
+ */
+public class AzureBlobClientHolder
+{
+    private static final String LOG_TAG = AzureBlobClientHolder.class.getSimpleName();
+
+    private String sasUrl;
+    private AzureBlob azureBlob;
+
+    /**
+     * Gets the client for the provided SAS URL, building a new one if the SAS URL is different from the one used for
+     * the current client.
+     *
+     * @param sasUrl The SAS URL from the preferences.
+     * @return The client for the SAS URL, or null if the SAS URL is not set.
+     */
+    public synchronized AzureBlob getAzureBlob(String sasUrl)
+    {
+        if (sasUrl == null || sasUrl.isEmpty())
+        {
+            this.sasUrl = null;
+            azureBlob = null;
+            return null;
+        }
+
+        if (!sasUrl.equals(this.sasUrl))
+        {
+            if (this.sasUrl != null && Log.isLoggable(LOG_TAG, Log.INFO))
+            {
+                Log.i(LOG_TAG, "The Azure SAS URL has changed, creating a new blob storage client");
+            }
+
+            azureBlob = new AzureBlob(sasUrl);
+            this.sasUrl = sasUrl;
+        }
+
+        return azureBlob;
+    }
+}
@@ -0,0 +1,59 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+/**
+ * Limits how much backlog is uploaded in a single sync, so that after a long time offline the fresh data still reaches
+ * the server in the next sync instead of waiting behind months of older files. Files modified within the fresh window
+ * are always uploaded. Older files are backlog, and each sync only uploads as much backlog as the budget allows, with
+ * the rest left for the following syncs.
+ * <p>
+ * A backlog file is let through as long as there is any budget left, even if it is bigger than what is left, so that
+ * a file larger than the whole budget is still uploaded eventually.
+ *
+ * @since 1.3.0
+ */
+public class BacklogBudget
+{
+    private final long freshWindowMs;
+    private long remainingBytes;
+    private int deferredFileCount;
+
+    /**
+     * @param freshWindowMs How recently a file must have been modified to be exempt from the budget.
+     * @param budgetBytes   The number of bytes of backlog to upload in one sync, or 0 for no limit.
+     */
+    public BacklogBudget(long freshWindowMs, long budgetBytes)
+    {
+        this.freshWindowMs = freshWindowMs;
+        remainingBytes = budgetBytes > 0 ? budgetBytes : Long.MAX_VALUE;
+    }
+
+    /**
+     * Checks if a file can be uploaded in this sync, and if so takes its size out of the budget.
+     *
+     * @param size           The size of the file in bytes.
+     * @param lastModifiedMs The last modified time of the file in milliseconds since the epoch.
+     * @param nowMs          The current time in milliseconds since the epoch.
+     * @return True if the file should be uploaded now, or false if it should be left for a later sync.
+     */
+    public synchronized boolean tryAcquire(long size, long lastModifiedMs, long nowMs)
+    {
+        if (nowMs - lastModifiedMs <= freshWindowMs) return true;
+
+        if (remainingBytes <= 0)
+        {
+            deferredFileCount++;
+            return false;
+        }
+
+        remainingBytes -= size;
+        return true;
+    }
+
+    /**
+     * @return The number of backlog files that were left for a later sync because the budget ran out.
+     */
+    public synchronized int getDeferredFileCount()
+    {
+        return deferredFileCount;
+    }
+}
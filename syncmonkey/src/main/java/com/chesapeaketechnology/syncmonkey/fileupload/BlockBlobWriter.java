@@ -0,0 +1,187 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An output stream that uploads the data written to it to a block blob, making each Put Blob, Put Block, and Put Block
+ * List request itself. The storage SDK's BlobOutputStream is not used because it wraps any error from blob storage in
+ * an IOException when it is closed, which hides the status code from the retry policy and from the conditional create
+ * check.
+ * <p>
+ * If all the data fits in a single block, it is sent in one Put Blob request when the stream is committed. Otherwise
+ * each full block is handed to the upload session's block executor, and the block list is committed once every block
+ * has been uploaded. Writing waits while all the upload session's block buffers are in use, so the blocks that are
+ * waiting to be sent or being sent are capped across every upload in the session.
+ * <p>
+ * Each request is retried by the upload session's retry policy on its own, so a transient error only sends one block
+ * again rather than the whole blob.
+ *
+ * @since 1.3.0
+ */
+public class BlockBlobWriter extends OutputStream
+{
+    /**
+     * The largest blob that is sent in a single Put Blob request. This is the storage SDK's default single put
+     * threshold, and a longer stream would be sent through its BlobOutputStream instead.
+     */
+    private static final int MAX_SINGLE_PUT_SIZE = 32 * 1024 * 1024;
+
+    private final CloudBlockBlob blob;
+    private final AccessCondition accessCondition;
+    private final UploadSession uploadSession;
+    private final OperationContext operationContext;
+    private final int blockSize;
+    private final MessageDigest md5Digest = AzureBlob.newMd5Digest();
+    private final List<BlockEntry> blockList = new ArrayList<>();
+    private final List<Future<?>> blockUploads = new ArrayList<>();
+    private final AtomicReference<Exception> blockUploadFailure = new AtomicReference<>();
+
+    private byte[] buffer;
+    private int bufferLength;
+    private boolean closed;
+
+    /**
+     * @param blob             The blob to upload the data to.
+     * @param accessCondition  The access condition to apply when the blob is created, or null to replace any existing
+     *                         blob.
+     * @param uploadSession    The settings and worker threads to use for the upload.
+     * @param operationContext The context used to track the requests made to blob storage.
+     */
+    public BlockBlobWriter(CloudBlockBlob blob, AccessCondition accessCondition, UploadSession uploadSession, OperationContext operationContext)
+    {
+        this.blob = blob;
+        this.accessCondition = accessCondition;
+        this.uploadSession = uploadSession;
+        this.operationContext = operationContext;
+
+        blockSize = uploadSession.getBlockSize();
+    }
+
+    @Override
+    public void write(int value) throws IOException
+    {
+        write(new byte[]{(byte) value}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        if (closed) throw new IOException("The upload to " + blob.getName() + " has already been committed or closed");
+
+        md5Digest.update(data, offset, length);
+        while (length > 0)
+        {
+            // A full block is only sent once there is more data, so that a blob of exactly one block is sent with Put Blob
+            if (bufferLength == blockSize) submitBlock();
+            if (buffer == null) buffer = new byte[blockSize];
+
+            final int copyLength = Math.min(length, blockSize - bufferLength);
+            System.arraycopy(data, offset, buffer, bufferLength, copyLength);
+            bufferLength += copyLength;
+            offset += copyLength;
+            length -= copyLength;
+        }
+    }
+
+    /**
+     * Uploads the data that has not been sent yet and creates the blob from all the data written to this stream.
+     *
+     * @return The Base64 encoded MD5 of the data, which is also set as the blob's Content-MD5.
+     * @throws StorageException If blob storage rejected a request, including when the blob already exists and the
+     *                          access condition does not allow it to be replaced.
+     * @throws IOException      If the upload was cancelled or interrupted.
+     */
+    public String commit() throws StorageException, IOException
+    {
+        if (closed) throw new IOException("The upload to " + blob.getName() + " has already been committed or closed");
+
+        final String contentMd5 = Base64.getEncoder().encodeToString(md5Digest.digest());
+        blob.getProperties().setContentMD5(contentMd5);
+
+        if (blockList.isEmpty() && bufferLength <= MAX_SINGLE_PUT_SIZE)
+        {
+            final byte[] data = buffer == null ? new byte[0] : buffer;
+            final int length = bufferLength;
+
+            // The MD5 is already set on the blob, and asking the SDK to work it out would make it read the data twice
+            final BlobRequestOptions requestOptions = new BlobRequestOptions();
+            requestOptions.setStoreBlobContentMD5(false);
+
+            uploadSession.getRetryPolicy().execute("upload " + blob.getName(), () -> {
+                blob.upload(uploadSession.monitor(new ByteArrayInputStream(data, 0, length), operationContext), length, accessCondition,
+                        requestOptions, operationContext);
+                return null;
+            });
+        } else
+        {
+            if (bufferLength > 0) submitBlock();
+            AzureBlob.waitForBlockUploads(blockUploads);
+
+            uploadSession.getRetryPolicy().execute("commit the block list for " + blob.getName(), () -> {
+                blob.commitBlockList(blockList, accessCondition, null, operationContext);
+                return null;
+            });
+        }
+
+        closed = true;
+        return contentMd5;
+    }
+
+    /**
+     * Stops the upload. Any blocks that are still being uploaded are cancelled, and if the stream has not been
+     * committed the blob is left as it was.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        buffer = null;
+        blockUploads.forEach(blockUpload -> blockUpload.cancel(true));
+    }
+
+    /**
+     * Hands the buffered block to a block worker to upload, waiting for a block worker to free up if they are all busy.
+     *
+     * @throws IOException If an earlier block failed to upload, or the upload was cancelled.
+     */
+    private void submitBlock() throws IOException
+    {
+        final Exception failure = blockUploadFailure.get();
+        if (failure != null) throw new IOException("A block of " + blob.getName() + " failed to upload", failure);
+        uploadSession.checkCancelled();
+
+        final byte[] block = bufferLength == blockSize ? buffer : Arrays.copyOf(buffer, bufferLength);
+        final String blockId = AzureBlob.getBlockId(blockList.size());
+        blockList.add(new BlockEntry(blockId));
+        buffer = null;
+        bufferLength = 0;
+
+        blockUploads.add(uploadSession.submitBlock(() -> {
+            try
+            {
+                AzureBlob.uploadBlock(blob, block, blockId, uploadSession);
+                return null;
+            } catch (Exception e)
+            {
+                blockUploadFailure.compareAndSet(null, e);
+                throw e;
+            }
+        }));
+    }
+}
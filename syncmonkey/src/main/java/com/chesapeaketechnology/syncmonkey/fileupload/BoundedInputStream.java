@@ -0,0 +1,67 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that ends after a fixed number of bytes, even if the stream it wraps has more. This keeps an upload
+ * from going past the length of a file that was measured before the upload started, so that anything appended to the
+ * file while it is uploaded is neither hashed nor sent.
+ *
+ * @since 1.3.0
+ */
+public class BoundedInputStream extends FilterInputStream
+{
+    private long remaining;
+
+    /**
+     * @param inputStream The stream to read from.
+     * @param maxLength   The number of bytes to read before the stream ends.
+     */
+    public BoundedInputStream(InputStream inputStream, long maxLength)
+    {
+        super(inputStream);
+        remaining = maxLength;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (remaining <= 0) return -1;
+
+        final int value = super.read();
+        if (value != -1) remaining--;
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (remaining <= 0) return -1;
+
+        final int bytesRead = super.read(buffer, offset, (int) Math.min(length, remaining));
+        if (bytesRead > 0) remaining -= bytesRead;
+        return bytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        final long skipped = super.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return (int) Math.min(super.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,116 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+/**
+ * An input stream that compresses another stream as it is read, so that a file can be compressed while it is being
+ * uploaded without ever holding the whole file, or the whole compressed file, in memory.
+ * <p>
+ * For the gzip format the gzip header is returned first, then the raw deflate data, and then the trailer that holds
+ * the checksum and length of the uncompressed data.
+ *
+ * @since 1.3.0
+ */
+public class CompressingInputStream extends InputStream
+{
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    private final boolean gzip;
+    private final Deflater deflater;
+    private final CheckedInputStream checkedInputStream;
+    private final DeflaterInputStream deflaterInputStream;
+
+    private byte[] pending;
+    private int pendingPosition;
+    private boolean deflaterFinished;
+
+    /**
+     * @param inputStream       The uncompressed data. It is closed when this stream is closed.
+     * @param compressionFormat The format to compress the data with, which must not be {@link CompressionFormat#NONE}.
+     * @param compressionLevel  The deflate compression level, between 1 for the fastest and 9 for the smallest.
+     */
+    public CompressingInputStream(InputStream inputStream, CompressionFormat compressionFormat, int compressionLevel)
+    {
+        if (compressionFormat == CompressionFormat.NONE) throw new IllegalArgumentException("A compression format is required");
+
+        gzip = compressionFormat == CompressionFormat.GZIP;
+        deflater = new Deflater(compressionLevel, gzip);
+        checkedInputStream = new CheckedInputStream(inputStream, new CRC32());
+        deflaterInputStream = new DeflaterInputStream(checkedInputStream, deflater);
+
+        if (gzip) pending = GZIP_HEADER;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        final byte[] buffer = new byte[1];
+        final int bytesRead = read(buffer, 0, 1);
+        return bytesRead == -1 ? -1 : buffer[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (length == 0) return 0;
+
+        if (pending != null)
+        {
+            final int bytesCopied = Math.min(length, pending.length - pendingPosition);
+            System.arraycopy(pending, pendingPosition, buffer, offset, bytesCopied);
+            pendingPosition += bytesCopied;
+            if (pendingPosition == pending.length)
+            {
+                pending = null;
+                pendingPosition = 0;
+            }
+            return bytesCopied;
+        }
+
+        if (deflaterFinished) return -1;
+
+        final int bytesRead = deflaterInputStream.read(buffer, offset, length);
+        if (bytesRead != -1) return bytesRead;
+
+        deflaterFinished = true;
+        if (!gzip) return -1;
+
+        pending = getGzipTrailer();
+        return read(buffer, offset, length);
+    }
+
+    /**
+     * @return The gzip trailer, which is the CRC-32 and then the length of the uncompressed data, both little endian.
+     */
+    private byte[] getGzipTrailer()
+    {
+        final long crc = checkedInputStream.getChecksum().getValue();
+        final long uncompressedLength = deflater.getBytesRead();
+
+        final byte[] trailer = new byte[GZIP_TRAILER_LENGTH];
+        for (int i = 0; i < 4; i++)
+        {
+            trailer[i] = (byte) (crc >> (8 * i));
+            trailer[i + 4] = (byte) (uncompressedLength >> (8 * i));
+        }
+        return trailer;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            deflaterInputStream.close();
+        } finally
+        {
+            deflater.end();
+        }
+    }
+}
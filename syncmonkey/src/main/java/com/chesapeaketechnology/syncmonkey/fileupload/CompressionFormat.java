@@ -0,0 +1,53 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+/**
+ * The formats that files can be compressed with while they are uploaded.
+ *
+ * @since 1.3.0
+ */
+public enum CompressionFormat
+{
+    /**
+     * Upload the files as they are.
+     */
+    NONE(null),
+
+    /**
+     * Compress the files using the gzip format.
+     */
+    GZIP("gzip"),
+
+    /**
+     * Compress the files using the zlib format, which is what the HTTP deflate content encoding refers to.
+     */
+    DEFLATE("deflate");
+
+    private final String contentEncoding;
+
+    CompressionFormat(String contentEncoding)
+    {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @return The value to use for the Content-Encoding header of a blob compressed with this format.
+     */
+    public String getContentEncoding()
+    {
+        return contentEncoding;
+    }
+
+    /**
+     * @param preferenceValue The value of the {@link SyncMonkeyConstants#PROPERTY_COMPRESSION_FORMAT_KEY} preference.
+     * @return The format that corresponds to the preference value, defaulting to {@link #NONE} for unknown values.
+     */
+    public static CompressionFormat fromPreference(String preferenceValue)
+    {
+        if (SyncMonkeyConstants.COMPRESSION_FORMAT_GZIP.equals(preferenceValue)) return GZIP;
+        if (SyncMonkeyConstants.COMPRESSION_FORMAT_DEFLATE.equals(preferenceValue)) return DEFLATE;
+
+        return NONE;
+    }
+}
@@ -0,0 +1,220 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+import net.grandcentrix.tray.AppPreferences;
+import net.grandcentrix.tray.TrayPreferences;
+import net.grandcentrix.tray.core.TrayStorage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the networks the device is connected to using a network callback, so the Wi-Fi and VPN checks are
+ * answered from the cached state instead of going through every network.
+ * <p>
+ * In the app process it can also start a sync as soon as the network that the upload settings require comes back, if
+ * an earlier sync was skipped or could not finish. Without this, files would wait for the next periodic sync even
+ * though the VPN, for example, came back minutes after the last sync gave up.
+ * <p>
+ * The sync adapter runs in its own process, which can be kept alive long after a sync, so it does not register the
+ * network callback. It reads the networks once at the start of each sync instead (see {@link #readCurrentNetworks(Context)}).
+ *
+ * @since 1.3.0
+ */
+public class ConnectivityMonitor
+{
+    private static final String LOG_TAG = ConnectivityMonitor.class.getSimpleName();
+
+    private static ConnectivityMonitor instance;
+
+    private final Context context;
+    private final Map<Network, NetworkCapabilities> networks = new ConcurrentHashMap<>();
+
+    private boolean syncTriggerStarted;
+    private boolean syncNetworkAvailable;
+
+    private ConnectivityMonitor(Context context)
+    {
+        this.context = context;
+    }
+
+    /**
+     * @param context The context to get the connectivity manager with.
+     * @return The monitor for the app process, which starts tracking the networks the first time it is used.
+     */
+    public static synchronized ConnectivityMonitor getInstance(Context context)
+    {
+        if (instance == null)
+        {
+            instance = new ConnectivityMonitor(context.getApplicationContext());
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Reads the networks the device is connected to right now, without tracking them after that.
+     *
+     * @param context The context to get the connectivity manager with.
+     * @return A monitor that answers from the networks that were connected when it was created.
+     */
+    public static ConnectivityMonitor readCurrentNetworks(Context context)
+    {
+        final ConnectivityMonitor connectivityMonitor = new ConnectivityMonitor(context.getApplicationContext());
+        final ConnectivityManager connectivityManager = connectivityMonitor.getConnectivityManager();
+        if (connectivityManager != null) connectivityMonitor.readNetworks(connectivityManager);
+        return connectivityMonitor;
+    }
+
+    private void start()
+    {
+        final ConnectivityManager connectivityManager = getConnectivityManager();
+        if (connectivityManager == null) return;
+
+        // The callback reports the current networks asynchronously, so they are read once up front so that a check
+        // made straight away sees them
+        readNetworks(connectivityManager);
+
+        // The default request leaves out VPN networks, so that capability is removed to see them as well
+        final NetworkRequest networkRequest = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .removeCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
+                .build();
+
+        connectivityManager.registerNetworkCallback(networkRequest, new ConnectivityManager.NetworkCallback()
+        {
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities)
+            {
+                networks.put(network, capabilities);
+                onNetworksChanged();
+            }
+
+            @Override
+            public void onLost(Network network)
+            {
+                networks.remove(network);
+                onNetworksChanged();
+            }
+        });
+    }
+
+    private ConnectivityManager getConnectivityManager()
+    {
+        final ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) Log.e(LOG_TAG, "Could not get the connectivity manager, so no networks will be found");
+        return connectivityManager;
+    }
+
+    private void readNetworks(ConnectivityManager connectivityManager)
+    {
+        for (Network network : connectivityManager.getAllNetworks())
+        {
+            final NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
+            if (capabilities != null) networks.put(network, capabilities);
+        }
+    }
+
+    /**
+     * @return True if the device is connected to a Wi-Fi network.
+     */
+    public boolean isWifiConnected()
+    {
+        for (NetworkCapabilities capabilities : networks.values())
+        {
+            if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) && !isVpn(capabilities)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return True if the device is connected to a VPN.
+     */
+    public boolean isVpnConnected()
+    {
+        for (NetworkCapabilities capabilities : networks.values())
+        {
+            if (isVpn(capabilities)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the networks that the upload settings require are connected.
+     *
+     * @param wifiOnly True if the upload is only allowed on Wi-Fi.
+     * @param vpnOnly  True if the upload is only allowed over a VPN.
+     * @return True if a sync can upload over the current networks.
+     */
+    public boolean isSyncNetworkAvailable(boolean wifiOnly, boolean vpnOnly)
+    {
+        if (wifiOnly && !isWifiConnected()) return false;
+        if (vpnOnly) return isVpnConnected();
+
+        for (NetworkCapabilities capabilities : networks.values())
+        {
+            if (!isVpn(capabilities)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts requesting a sync whenever the networks needed for the upload become available and there is a sync
+     * pending. This is only done in the app process, since that is where the sync requests are coalesced.
+     */
+    public synchronized void startSyncTrigger()
+    {
+        if (syncTriggerStarted) return;
+
+        syncTriggerStarted = true;
+        syncNetworkAvailable = isSyncNetworkAvailable(new AppPreferences(context));
+    }
+
+    private void onNetworksChanged()
+    {
+        final AppPreferences appPreferences = new AppPreferences(context);
+        final boolean syncNetworkBecameAvailable;
+        synchronized (this)
+        {
+            if (!syncTriggerStarted) return;
+
+            // The capabilities change all the time, for example with the signal strength, so only a change from not
+            // available to available starts a sync
+            final boolean available = isSyncNetworkAvailable(appPreferences);
+            syncNetworkBecameAvailable = available && !syncNetworkAvailable;
+            syncNetworkAvailable = available;
+        }
+
+        if (!syncNetworkBecameAvailable || !appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_AUTO_SYNC_KEY, true)) return;
+
+        final TrayPreferences statusInformation = new TrayPreferences(context, SyncMonkeyConstants.TRAY_STATUS_MODULE, 1, TrayStorage.Type.DEVICE);
+        if (statusInformation.getBoolean(SyncMonkeyConstants.STATUS_PROPERTY_SYNC_PENDING_KEY, false))
+        {
+            if (Log.isLoggable(LOG_TAG, Log.INFO))
+            {
+                Log.i(LOG_TAG, "The network needed for uploads is back and a sync is pending, starting a sync");
+            }
+            SyncRequestCoalescer.requestSync(context);
+        }
+    }
+
+    private boolean isSyncNetworkAvailable(AppPreferences appPreferences)
+    {
+        return isSyncNetworkAvailable(appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_WIFI_ONLY_KEY, true),
+                appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_VPN_ONLY_KEY, true));
+    }
+
+    private static boolean isVpn(NetworkCapabilities capabilities)
+    {
+        return capabilities.hasTransport(NetworkCapabilities.TRANSPORT_VPN)
+                && !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN);
+    }
+}
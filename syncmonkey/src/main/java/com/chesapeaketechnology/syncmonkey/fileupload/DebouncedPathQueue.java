@@ -0,0 +1,94 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Collects the paths of changed files and hands them over in batches. A batch is handed over once no more changes have
+ * come in for the debounce delay, so a burst of files written together ends up in a single upload. A batch is never
+ * held back for longer than the max delay, so a directory that is written to all the time still gets uploaded.
+ * <p>
+ * A path that changes several times before the batch is handed over only appears in it once.
+ *
+ * @since 1.3.0
+ */
+public class DebouncedPathQueue
+{
+    private final ScheduledExecutorService scheduler;
+    private final long debounceMs;
+    private final long maxDelayMs;
+    private final Consumer<Set<String>> batchConsumer;
+    private final LongSupplier clockMs;
+
+    private Set<String> pendingPaths = new LinkedHashSet<>();
+    private long firstPendingMs;
+    private ScheduledFuture<?> scheduledFlush;
+
+    /**
+     * @param scheduler     The executor to wait out the delays and call the batch consumer on.
+     * @param debounceMs    How long to wait for more changes before handing over a batch.
+     * @param maxDelayMs    The longest a change can wait before its batch is handed over.
+     * @param batchConsumer Called with each batch of changed paths.
+     */
+    public DebouncedPathQueue(ScheduledExecutorService scheduler, long debounceMs, long maxDelayMs, Consumer<Set<String>> batchConsumer)
+    {
+        this(scheduler, debounceMs, maxDelayMs, batchConsumer, System::currentTimeMillis);
+    }
+
+    DebouncedPathQueue(ScheduledExecutorService scheduler, long debounceMs, long maxDelayMs, Consumer<Set<String>> batchConsumer,
+                       LongSupplier clockMs)
+    {
+        this.scheduler = scheduler;
+        this.debounceMs = debounceMs;
+        this.maxDelayMs = Math.max(debounceMs, maxDelayMs);
+        this.batchConsumer = batchConsumer;
+        this.clockMs = clockMs;
+    }
+
+    /**
+     * Adds a changed path to the next batch, and pushes the hand over back by the debounce delay, up to the max delay.
+     *
+     * @param path The path of the file that changed.
+     */
+    public synchronized void add(String path)
+    {
+        final long nowMs = clockMs.getAsLong();
+        if (pendingPaths.isEmpty()) firstPendingMs = nowMs;
+        pendingPaths.add(path);
+
+        if (scheduledFlush != null) scheduledFlush.cancel(false);
+
+        final long delayMs = Math.min(debounceMs, Math.max(0, firstPendingMs + maxDelayMs - nowMs));
+        scheduledFlush = scheduler.schedule(this::flush, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drops any changes that have not been handed over yet.
+     */
+    public synchronized void clear()
+    {
+        if (scheduledFlush != null) scheduledFlush.cancel(false);
+        scheduledFlush = null;
+        pendingPaths = new LinkedHashSet<>();
+    }
+
+    private void flush()
+    {
+        final Set<String> batch;
+        synchronized (this)
+        {
+            if (pendingPaths.isEmpty()) return;
+
+            batch = pendingPaths;
+            pendingPaths = new LinkedHashSet<>();
+            scheduledFlush = null;
+        }
+
+        batchConsumer.accept(batch);
+    }
+}
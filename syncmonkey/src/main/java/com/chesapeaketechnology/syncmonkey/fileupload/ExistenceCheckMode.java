@@ -0,0 +1,35 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+/**
+ * The strategies that can be used to decide if a local file is already present in blob storage.
+ *
+ * @since 1.3.0
+ */
+public enum ExistenceCheckMode
+{
+    /**
+     * List all the blobs under the destination path before uploading, and skip any files whose blob name is already
+     * present in the listing.
+     */
+    LIST,
+
+    /**
+     * Skip the listing and issue every upload with an If-None-Match: * access condition so that the service rejects
+     * the upload if the blob already exists. The service only rejects the upload once the whole file has been sent,
+     * so large files are checked for with a cheap request first when the SAS grants read permission.
+     */
+    CONDITIONAL_CREATE;
+
+    /**
+     * @param preferenceValue The value of the {@link SyncMonkeyConstants#PROPERTY_EXISTENCE_CHECK_MODE_KEY} preference.
+     * @return The mode that corresponds to the preference value, defaulting to {@link #LIST} for unknown values.
+     */
+    public static ExistenceCheckMode fromPreference(String preferenceValue)
+    {
+        if (SyncMonkeyConstants.EXISTENCE_CHECK_MODE_CONDITIONAL.equals(preferenceValue)) return CONDITIONAL_CREATE;
+
+        return LIST;
+    }
+}
@@ -6,12 +6,7 @@ import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.Context;
-import android.content.SyncRequest;
 import android.content.SyncResult;
-import android.net.ConnectivityManager;
-import android.net.Network;
-import android.net.NetworkCapabilities;
-import android.net.NetworkInfo;
 import android.os.Bundle;
 import android.os.Environment;
 import android.util.Log;
@@ -25,7 +20,28 @@ import net.grandcentrix.tray.TrayPreferences;
 import net.grandcentrix.tray.core.TrayStorage;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 /**
  * Handle the transfer of data between a server and an
@@ -34,12 +50,20 @@ import java.time.LocalDateTime;
 public class FileUploadSyncAdapter extends AbstractThreadedSyncAdapter
 {
     private static final String LOG_TAG = FileUploadSyncAdapter.class.getSimpleName();
+    private static final long BYTES_PER_KB = 1024;
+    private static final long BYTES_PER_MB = 1024 * 1024;
 
-    private final AzureBlob azureBlob;
+    private final AzureBlobClientHolder azureBlobClientHolder = new AzureBlobClientHolder();
+    private final SyncStateIndex syncStateIndex;
     private final String dataDirectoryPath;
     private final AppPreferences appPreferences;
     private final TrayPreferences statusInformation;
 
+    /**
+     * The upload session of the sync that is running, or null if no uploads are in progress.
+     */
+    private volatile UploadSession activeUploadSession;
+
     /**
      * Set up the sync adapter
      */
@@ -59,16 +83,8 @@ public class FileUploadSyncAdapter extends AbstractThreadedSyncAdapter
 
         appPreferences = new AppPreferences(context);
         statusInformation = new TrayPreferences(context, SyncMonkeyConstants.TRAY_STATUS_MODULE, 1, TrayStorage.Type.DEVICE);
+        syncStateIndex = new SyncStateIndex(context);
         dataDirectoryPath = Environment.getExternalStorageDirectory().getPath() + "/";
-        final String sasUrl = appPreferences.getString(SyncMonkeyConstants.PROPERTY_AZURE_SAS_URL_KEY, "");
-        if (sasUrl != null && !sasUrl.isEmpty())
-        {
-            azureBlob = new AzureBlob(sasUrl);
-        } else
-        {
-            Log.w(LOG_TAG, "Did not find the Azure SAS URL Property, syncs will not succeed.");
-            azureBlob = null;
-        }
     }
 
     /**
@@ -89,6 +105,10 @@ public class FileUploadSyncAdapter extends AbstractThreadedSyncAdapter
 
             Log.i(LOG_TAG, "Running the SyncMonkey Sync Adapter");
 
+            final String targetPathsExtra = extras.getString(SyncMonkeyConstants.SYNC_EXTRAS_TARGET_PATHS);
+            final List<String> targetPaths = targetPathsExtra == null ? null
+                    : Arrays.asList(targetPathsExtra.split(SyncMonkeyConstants.TARGET_PATH_SEPARATOR));
+
             final boolean transmitOnlyOnVpn = appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_VPN_ONLY_KEY, true);
             final boolean transmitOnlyOnWiFi = appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_WIFI_ONLY_KEY, true);
 
@@ -98,24 +118,29 @@ public class FileUploadSyncAdapter extends AbstractThreadedSyncAdapter
                 Log.i(LOG_TAG, "VPN Only Upload Preference: " + transmitOnlyOnVpn);
             }
 
-            if (transmitOnlyOnWiFi && !isWiFiConnected())
+            // Reading the networks once keeps a network callback from staying registered in the sync process
+            final ConnectivityMonitor connectivityMonitor = ConnectivityMonitor.readCurrentNetworks(getContext());
+
+            if (transmitOnlyOnWiFi && !connectivityMonitor.isWifiConnected())
             {
                 updateSyncStatus("Skipping upload because Wi-Fi is not connected and the Wi-Fi Only setting is enabled");
+                setSyncPending(true);
                 return;
             }
 
             if (transmitOnlyOnVpn)
             {
-                if (isVpnEnabled())
+                if (connectivityMonitor.isVpnConnected())
                 {
-                    uploadFiles();
+                    uploadFiles(targetPaths);
                 } else
                 {
                     updateSyncStatus("Skipping upload because the VPN is not connected and the VPN Only setting is enabled");
+                    setSyncPending(true);
                 }
             } else
             {
-                uploadFiles();
+                uploadFiles(targetPaths);
             }
         } catch (Exception e)
         {
@@ -125,103 +150,82 @@ public class FileUploadSyncAdapter extends AbstractThreadedSyncAdapter
     }
 
     /**
-     * Check if the Android device is currently connected to a Wi-Fi network.
+     * Called by the sync framework when it cancels the running sync, for example because the network was lost. Any
+     * uploads in progress are stopped straight away so that the next sync does not have to wait for them to time out.
+     * Block uploads keep the blocks that were already sent in the upload journal, so the next sync resumes from them.
      *
-     * @return If the device is connected to a Wi-Fi Network return true.
+     * @since 1.3.0
      */
-    private boolean isWiFiConnected()
+    @Override
+    public void onSyncCanceled()
     {
-        final ConnectivityManager connectivityManager = (ConnectivityManager) getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
-        if (connectivityManager == null) return false;
-
-        boolean wifiConnected = false;
-
-        for (Network network : connectivityManager.getAllNetworks())
-        {
-            NetworkInfo networkInfo = connectivityManager.getNetworkInfo(network);
-            if (networkInfo == null) continue;
+        Log.i(LOG_TAG, "The sync was cancelled, stopping the uploads in progress");
 
-            if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI)
-            {
-                wifiConnected = networkInfo.isConnected();
-                break;
-            }
-        }
-        if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Wifi connected: " + wifiConnected);
+        final UploadSession uploadSession = activeUploadSession;
+        if (uploadSession != null) uploadSession.cancel();
 
-        return wifiConnected;
+        super.onSyncCanceled();
     }
 
     /**
-     * Check if the Android device is currently attached to a VPN.
+     * Schedules the periodic sync. The schedule is handled by the {@link ScheduledSyncWorker} so that the sync is only
+     * started once the network and battery constraints are met.
      *
-     * @return If the device is connected to a VPN return true.
+     * @param context The context to use when creating the Sync {@link Account}.
      */
-    private boolean isVpnEnabled()
+    public static void addPeriodicSync(Context context)
     {
-        final ConnectivityManager connectivityManager = (ConnectivityManager) getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
-        if (connectivityManager == null) return false;
-
-        final Network[] networks = connectivityManager.getAllNetworks();
-
-        boolean vpnEnabled = false;
-
-        if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Network count: " + networks.length);
-        for (int i = 0; i < networks.length; i++)
-        {
-            final NetworkCapabilities caps = connectivityManager.getNetworkCapabilities(networks[i]);
-            if (caps == null) continue;
-
-            if (Log.isLoggable(LOG_TAG, Log.INFO))
-            {
-                Log.i(LOG_TAG, "Network " + i + ": " + networks[i]);
-            }
+        Log.i(LOG_TAG, "Adding the periodic sync adapter for Sync Monkey");
 
-            if (caps.hasTransport(NetworkCapabilities.TRANSPORT_VPN)
-                    && !caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN))
-            {
-                vpnEnabled = true;
-            }
+        final Account dummyAccount = getSyncAccount(context);
 
-            if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "VPN transport?: " + vpnEnabled);
-        }
+        // Remove the fixed periodic SyncRequest added by earlier versions, otherwise it would keep waking the device as well
+        ContentResolver.removePeriodicSync(dummyAccount, SyncMonkeyConstants.AUTHORITY, new Bundle());
+        ContentResolver.setSyncAutomatically(dummyAccount, SyncMonkeyConstants.AUTHORITY, true);
 
-        return vpnEnabled;
+        ScheduledSyncWorker.schedule(context);
     }
 
     /**
-     * Generates and submits a {@link SyncRequest} that can be used to schedule periodic sync updates.
+     * Run the sync adapter immediately.
      *
      * @param context The context to use when creating the Sync {@link Account}.
      */
-    public static void addPeriodicSync(Context context)
+    public static void runSyncAdapterNow(Context context)
     {
-        Log.i(LOG_TAG, "Adding the periodic sync adapter for Sync Monkey");
-
-        final Account dummyAccount = getSyncAccount(context);
+        Log.i(LOG_TAG, "Running the sync adapter for Sync Monkey immediately");
 
-        final SyncRequest syncRequest = new SyncRequest.Builder()
-                .syncPeriodic(SyncMonkeyConstants.SECONDS_IN_HOUR, (SyncMonkeyConstants.SECONDS_IN_HOUR) / 2)
-                .setSyncAdapter(dummyAccount, SyncMonkeyConstants.AUTHORITY)
-                .setExtras(new Bundle()) // I think there is a bug in Android that makes setting this empty Bundle a requirement
-                .build();
+        Bundle settingsBundle = new Bundle();
+        settingsBundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        settingsBundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
 
-        ContentResolver.requestSync(syncRequest);
-        ContentResolver.setSyncAutomatically(dummyAccount, SyncMonkeyConstants.AUTHORITY, true);
+        ContentResolver.requestSync(getSyncAccount(context), SyncMonkeyConstants.AUTHORITY, settingsBundle);
     }
 
     /**
-     * Run the sync adapter immediately.
+     * Run the sync adapter immediately for just the provided files, which saves scanning all the sync directories when
+     * only a few files are known to have changed. If there are too many files to fit in the sync request, a full sync
+     * is run instead.
      *
      * @param context The context to use when creating the Sync {@link Account}.
+     * @param paths   The paths of the files to sync. A path to a directory syncs all the files under it.
+     * @since 1.3.0
      */
-    public static void runSyncAdapterNow(Context context)
+    public static void requestTargetedSync(Context context, Collection<String> paths)
     {
-        Log.i(LOG_TAG, "Running the sync adapter for Sync Monkey immediately");
+        if (paths.size() > SyncMonkeyConstants.MAX_TARGET_PATHS)
+        {
+            runSyncAdapterNow(context);
+            return;
+        }
 
+        Log.i(LOG_TAG, "Running the sync adapter for Sync Monkey immediately for " + paths.size() + " files");
+
+        // The sync extras can only hold single values, so the paths are joined into one string
         Bundle settingsBundle = new Bundle();
         settingsBundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
         settingsBundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        settingsBundle.putString(SyncMonkeyConstants.SYNC_EXTRAS_TARGET_PATHS, String.join(SyncMonkeyConstants.TARGET_PATH_SEPARATOR, paths));
 
         ContentResolver.requestSync(getSyncAccount(context), SyncMonkeyConstants.AUTHORITY, settingsBundle);
     }
@@ -258,14 +262,18 @@ public class FileUploadSyncAdapter extends AbstractThreadedSyncAdapter
 
     /**
      * Pull the upload preferences from the PreferenceManager, and then upload any files that are not already present on the remote server.
+     *
+     * @param targetPaths The only files to upload, or null to upload every file in the sync directories.
      */
-    private void uploadFiles()
+    private void uploadFiles(List<String> targetPaths)
     {
         synchronized (SyncMonkeyMainActivity.class)
         {
             final String containerName = appPreferences.getString(SyncMonkeyConstants.PROPERTY_CONTAINER_NAME_KEY, null);
             final String localSyncDirectories = appPreferences.getString(SyncMonkeyConstants.PROPERTY_LOCAL_SYNC_DIRECTORIES_KEY, "");
             final String deviceId = appPreferences.getString(SyncMonkeyConstants.PROPERTY_DEVICE_ID_KEY, SyncMonkeyConstants.DEFAULT_DEVICE_ID);
+            final Set<String> appendSyncDirectories = new HashSet<>(Arrays.asList(appPreferences.getString(
+                    SyncMonkeyConstants.PROPERTY_APPEND_SYNC_DIRECTORIES_KEY, "").split(SyncMonkeyConstants.COLON_SEPARATOR)));
 
             if (containerName == null)
             {
@@ -275,33 +283,265 @@ public class FileUploadSyncAdapter extends AbstractThreadedSyncAdapter
                 return;
             }
 
-            updateSyncStatus("Sync preference checks passed, starting upload ...");
+            // Looked up on every sync so that a new SAS URL is used straight away
+            final AzureBlob azureBlob = azureBlobClientHolder.getAzureBlob(
+                    appPreferences.getString(SyncMonkeyConstants.PROPERTY_AZURE_SAS_URL_KEY, ""));
+            if (azureBlob == null)
+            {
+                Log.w(LOG_TAG, "Did not find the Azure SAS URL Property, syncs will not succeed.");
+            } else
+            {
+                final int requestTimeoutSeconds = Math.max(0, SyncMonkeyUtils.getIntPreference(appPreferences,
+                        SyncMonkeyConstants.PROPERTY_REQUEST_TIMEOUT_SECONDS_KEY, SyncMonkeyConstants.DEFAULT_REQUEST_TIMEOUT_SECONDS));
+                final int maxRequestExecutionTimeSeconds = Math.max(0, SyncMonkeyUtils.getIntPreference(appPreferences,
+                        SyncMonkeyConstants.PROPERTY_MAX_REQUEST_EXECUTION_TIME_SECONDS_KEY,
+                        SyncMonkeyConstants.DEFAULT_MAX_REQUEST_EXECUTION_TIME_SECONDS));
+                azureBlob.setRequestTimeouts((int) TimeUnit.SECONDS.toMillis(requestTimeoutSeconds),
+                        (int) TimeUnit.SECONDS.toMillis(maxRequestExecutionTimeSeconds));
+            }
 
-            // First, sync any files in the private shared directory
-            final String privateAppFilesSyncDirectory = new File(getContext().getFilesDir(), SyncMonkeyConstants.PRIVATE_SHARED_SYNC_DIRECTORY).getPath();
-            boolean anyDirectorySuccess = processDirectoryForUpload(privateAppFilesSyncDirectory, deviceId);
+            updateSyncStatus("Sync preference checks passed, starting upload ...");
 
-            for (String relativeSyncDirectory : localSyncDirectories.split(SyncMonkeyConstants.COLON_SEPARATOR))
+            final long syncStartTimeMs = System.currentTimeMillis();
+            try (final UploadSession uploadSession = createUploadSession())
             {
-                if (relativeSyncDirectory.isEmpty()) continue;
+                activeUploadSession = uploadSession;
+
+                // First, sync any files in the private shared directory
+                final String privateAppFilesSyncDirectory = new File(getContext().getFilesDir(), SyncMonkeyConstants.PRIVATE_SHARED_SYNC_DIRECTORY).getPath();
+                boolean allFilesSynced = processDirectoryForUpload(azureBlob, privateAppFilesSyncDirectory, deviceId, false, uploadSession,
+                        getTargetFiles(targetPaths, privateAppFilesSyncDirectory));
+
+                for (String relativeSyncDirectory : localSyncDirectories.split(SyncMonkeyConstants.COLON_SEPARATOR))
+                {
+                    if (relativeSyncDirectory.isEmpty()) continue;
+                    if (uploadSession.isCancelled()) break;
+
+                    final boolean appendMode = appendSyncDirectories.contains(relativeSyncDirectory);
+                    final String syncDirectoryPath = dataDirectoryPath + relativeSyncDirectory;
+                    final boolean success = processDirectoryForUpload(azureBlob, syncDirectoryPath, deviceId, appendMode, uploadSession,
+                            getTargetFiles(targetPaths, syncDirectoryPath));
+                    if (!success) allFilesSynced = false;
+                }
+
+                if (Log.isLoggable(LOG_TAG, Log.INFO))
+                {
+                    Log.i(LOG_TAG, "The sync made " + uploadSession.getRequestCount() + " requests to blob storage");
+                }
+
+                if (uploadSession.isCancelled())
+                {
+                    updateSyncStatus("Upload cancelled");
+                    setSyncPending(true);
+                    return;
+                }
 
-                final boolean success = processDirectoryForUpload(dataDirectoryPath + relativeSyncDirectory, deviceId);
-                if (success) anyDirectorySuccess = success;
+                final int backlogFileCount = uploadSession.getBacklogBudget().getDeferredFileCount();
+                if (backlogFileCount > 0 && Log.isLoggable(LOG_TAG, Log.INFO))
+                {
+                    Log.i(LOG_TAG, "Left " + backlogFileCount + " older files for the next sync because the backlog limit was reached");
+                }
+
+                updateSyncStatus(allFilesSynced ? "Upload successful" : "Upload failed");
+                // A targeted sync only looks at some of the files, so it does not show that everything is synced
+                if (allFilesSynced && targetPaths == null) updateLastSuccessfulSyncTime();
+                if (targetPaths == null) updateSyncInterval(uploadSession, syncStartTimeMs, !allFilesSynced || backlogFileCount > 0);
+
+                // Only a full sync can show that nothing is left, but any sync can leave files behind
+                if (!allFilesSynced || backlogFileCount > 0)
+                {
+                    setSyncPending(true);
+                } else if (targetPaths == null)
+                {
+                    setSyncPending(false);
+                }
+            } finally
+            {
+                activeUploadSession = null;
             }
+        }
+    }
+
+    /**
+     * Reads the upload settings from the preferences so that any changes since the last sync are picked up.
+     *
+     * @return A new upload session for the current sync.
+     * @since 1.3.0
+     */
+    private UploadSession createUploadSession()
+    {
+        final ExistenceCheckMode existenceCheckMode = ExistenceCheckMode.fromPreference(
+                appPreferences.getString(SyncMonkeyConstants.PROPERTY_EXISTENCE_CHECK_MODE_KEY, SyncMonkeyConstants.EXISTENCE_CHECK_MODE_LIST));
+
+        final int uploadWorkerCount = clamp(SyncMonkeyUtils.getIntPreference(appPreferences, SyncMonkeyConstants.PROPERTY_UPLOAD_WORKER_COUNT_KEY,
+                SyncMonkeyConstants.DEFAULT_UPLOAD_WORKER_COUNT), SyncMonkeyConstants.MIN_UPLOAD_WORKER_COUNT, SyncMonkeyConstants.MAX_UPLOAD_WORKER_COUNT);
+
+        final int blockUploadThresholdMb = Math.max(1, SyncMonkeyUtils.getIntPreference(appPreferences,
+                SyncMonkeyConstants.PROPERTY_BLOCK_UPLOAD_THRESHOLD_MB_KEY, SyncMonkeyConstants.DEFAULT_BLOCK_UPLOAD_THRESHOLD_MB));
+
+        final int configuredBlockSizeMb = clamp(SyncMonkeyUtils.getIntPreference(appPreferences, SyncMonkeyConstants.PROPERTY_BLOCK_SIZE_MB_KEY,
+                SyncMonkeyConstants.DEFAULT_BLOCK_SIZE_MB), SyncMonkeyConstants.MIN_BLOCK_SIZE_MB, SyncMonkeyConstants.MAX_BLOCK_SIZE_MB);
+
+        // The session holds up to one block per block buffer, plus the block each upload worker is reading
+        final int maxBlockSizeMb = Math.max(SyncMonkeyConstants.MIN_BLOCK_SIZE_MB,
+                SyncMonkeyConstants.MAX_BLOCK_BUFFER_MEMORY_MB / (2 * uploadWorkerCount));
+        final int blockSizeMb = Math.min(configuredBlockSizeMb, maxBlockSizeMb);
+        if (blockSizeMb < configuredBlockSizeMb && Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, "Reducing the block size from " + configuredBlockSizeMb + " MB to " + blockSizeMb + " MB so that "
+                    + uploadWorkerCount + " upload workers stay within the block buffer memory budget");
+        }
+
+        final int maxUploadAttempts = clamp(SyncMonkeyUtils.getIntPreference(appPreferences, SyncMonkeyConstants.PROPERTY_MAX_UPLOAD_ATTEMPTS_KEY,
+                SyncMonkeyConstants.DEFAULT_MAX_UPLOAD_ATTEMPTS), SyncMonkeyConstants.MIN_MAX_UPLOAD_ATTEMPTS, SyncMonkeyConstants.MAX_MAX_UPLOAD_ATTEMPTS);
+        final RetryPolicy retryPolicy = new RetryPolicy(maxUploadAttempts, SyncMonkeyConstants.RETRY_BASE_DELAY_MS, SyncMonkeyConstants.RETRY_MAX_DELAY_MS);
+
+        final CompressionFormat compressionFormat = CompressionFormat.fromPreference(
+                appPreferences.getString(SyncMonkeyConstants.PROPERTY_COMPRESSION_FORMAT_KEY, SyncMonkeyConstants.COMPRESSION_FORMAT_NONE));
+        final int compressionLevel = clamp(SyncMonkeyUtils.getIntPreference(appPreferences, SyncMonkeyConstants.PROPERTY_COMPRESSION_LEVEL_KEY,
+                SyncMonkeyConstants.DEFAULT_COMPRESSION_LEVEL), SyncMonkeyConstants.MIN_COMPRESSION_LEVEL, SyncMonkeyConstants.MAX_COMPRESSION_LEVEL);
+        final Set<String> compressedExtensions = new HashSet<>();
+        for (String extension : appPreferences.getString(SyncMonkeyConstants.PROPERTY_COMPRESSED_EXTENSIONS_KEY,
+                SyncMonkeyConstants.DEFAULT_COMPRESSED_EXTENSIONS).split(SyncMonkeyConstants.COLON_SEPARATOR))
+        {
+            final String trimmedExtension = extension.trim();
+            if (!trimmedExtension.isEmpty()) compressedExtensions.add(trimmedExtension.toLowerCase(Locale.US));
+        }
+
+        final int bundleFileSizeThresholdKb = Math.max(0, SyncMonkeyUtils.getIntPreference(appPreferences,
+                SyncMonkeyConstants.PROPERTY_BUNDLE_FILE_SIZE_THRESHOLD_KB_KEY, SyncMonkeyConstants.DEFAULT_BUNDLE_FILE_SIZE_THRESHOLD_KB));
+        final int maxBundleSizeMb = Math.max(1, SyncMonkeyUtils.getIntPreference(appPreferences, SyncMonkeyConstants.PROPERTY_MAX_BUNDLE_SIZE_MB_KEY,
+                SyncMonkeyConstants.DEFAULT_MAX_BUNDLE_SIZE_MB));
+
+        final int stallTimeoutSeconds = Math.max(0, SyncMonkeyUtils.getIntPreference(appPreferences,
+                SyncMonkeyConstants.PROPERTY_STALL_TIMEOUT_SECONDS_KEY, SyncMonkeyConstants.DEFAULT_STALL_TIMEOUT_SECONDS));
+
+        return new UploadSession(syncStateIndex, existenceCheckMode, retryPolicy, createBandwidthLimiter(), compressionFormat, compressionLevel,
+                compressedExtensions, bundleFileSizeThresholdKb * BYTES_PER_KB, maxBundleSizeMb * BYTES_PER_MB, createStableFileFilter(),
+                createRetentionPolicy(), createBacklogBudget(), uploadWorkerCount, blockUploadThresholdMb * BYTES_PER_MB, blockSizeMb * (int) BYTES_PER_MB,
+                TimeUnit.SECONDS.toMillis(stallTimeoutSeconds));
+    }
+
+    /**
+     * Creates the filter that defers files that are still being written to a later sync.
+     *
+     * @since 1.3.0
+     */
+    private StableFileFilter createStableFileFilter()
+    {
+        final int stableFileWindowSeconds = Math.max(0, SyncMonkeyUtils.getIntPreference(appPreferences,
+                SyncMonkeyConstants.PROPERTY_STABLE_FILE_WINDOW_SECONDS_KEY, SyncMonkeyConstants.DEFAULT_STABLE_FILE_WINDOW_SECONDS));
 
-            updateSyncStatus(anyDirectorySuccess ? "Upload successful" : "Uploaded failed");
-            if (anyDirectorySuccess) updateLastSuccessfulSyncTime();
+        final List<String> markerSuffixes = new ArrayList<>();
+        for (String markerSuffix : appPreferences.getString(SyncMonkeyConstants.PROPERTY_IN_PROGRESS_MARKER_SUFFIXES_KEY,
+                SyncMonkeyConstants.DEFAULT_IN_PROGRESS_MARKER_SUFFIXES).split(SyncMonkeyConstants.COLON_SEPARATOR))
+        {
+            final String trimmedMarkerSuffix = markerSuffix.trim();
+            if (!trimmedMarkerSuffix.isEmpty()) markerSuffixes.add(trimmedMarkerSuffix);
         }
+
+        return new StableFileFilter(TimeUnit.SECONDS.toMillis(stableFileWindowSeconds), markerSuffixes);
+    }
+
+    /**
+     * Creates the policy that removes local files once they have been uploaded.
+     *
+     * @since 1.3.0
+     */
+    private RetentionPolicy createRetentionPolicy()
+    {
+        final RetentionMode retentionMode = RetentionMode.fromPreference(
+                appPreferences.getString(SyncMonkeyConstants.PROPERTY_RETENTION_MODE_KEY, SyncMonkeyConstants.RETENTION_MODE_KEEP));
+
+        String archiveDirectoryName = appPreferences.getString(SyncMonkeyConstants.PROPERTY_RETENTION_ARCHIVE_DIRECTORY_KEY,
+                SyncMonkeyConstants.DEFAULT_RETENTION_ARCHIVE_DIRECTORY);
+        if (archiveDirectoryName == null || archiveDirectoryName.trim().isEmpty())
+        {
+            archiveDirectoryName = SyncMonkeyConstants.DEFAULT_RETENTION_ARCHIVE_DIRECTORY;
+        }
+
+        final int maxSizeMb = Math.max(0, SyncMonkeyUtils.getIntPreference(appPreferences, SyncMonkeyConstants.PROPERTY_RETENTION_MAX_SIZE_MB_KEY,
+                SyncMonkeyConstants.DEFAULT_RETENTION_MAX_SIZE_MB));
+        final int maxAgeDays = Math.max(0, SyncMonkeyUtils.getIntPreference(appPreferences, SyncMonkeyConstants.PROPERTY_RETENTION_MAX_AGE_DAYS_KEY,
+                SyncMonkeyConstants.DEFAULT_RETENTION_MAX_AGE_DAYS));
+
+        return new RetentionPolicy(retentionMode, archiveDirectoryName.trim(), maxSizeMb * BYTES_PER_MB, TimeUnit.DAYS.toMillis(maxAgeDays));
+    }
+
+    /**
+     * Creates the token bucket that limits the total upload rate of all the parallel uploads.
+     *
+     * @return The token bucket, or null if the upload rate limit is turned off.
+     * @since 1.3.0
+     */
+    private TokenBucket createBandwidthLimiter()
+    {
+        final int uploadRateLimitKbps = SyncMonkeyUtils.getIntPreference(appPreferences, SyncMonkeyConstants.PROPERTY_UPLOAD_RATE_LIMIT_KBPS_KEY,
+                SyncMonkeyConstants.DEFAULT_UPLOAD_RATE_LIMIT_KBPS);
+        if (uploadRateLimitKbps <= 0) return null;
+
+        // By default allow a burst of one second's worth of data
+        final int uploadBurstSizeKb = SyncMonkeyUtils.getIntPreference(appPreferences, SyncMonkeyConstants.PROPERTY_UPLOAD_BURST_SIZE_KB_KEY,
+                SyncMonkeyConstants.DEFAULT_UPLOAD_BURST_SIZE_KB);
+        final long bytesPerSecond = uploadRateLimitKbps * BYTES_PER_KB;
+        final long burstBytes = uploadBurstSizeKb > 0 ? uploadBurstSizeKb * BYTES_PER_KB : bytesPerSecond;
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, "Limiting uploads to " + uploadRateLimitKbps + " KB/s with a burst of " + burstBytes / BYTES_PER_KB + " KB");
+        }
+
+        return new TokenBucket(bytesPerSecond, burstBytes);
+    }
+
+    /**
+     * Bounds a preference value to a sane range in case the preference is out of range.
+     *
+     * @since 1.3.0
+     */
+    private static int clamp(int value, int min, int max)
+    {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Creates the budget that limits how much older data is uploaded in one sync.
+     *
+     * @since 1.3.0
+     */
+    private BacklogBudget createBacklogBudget()
+    {
+        final int backlogBudgetMb = Math.max(0, SyncMonkeyUtils.getIntPreference(appPreferences, SyncMonkeyConstants.PROPERTY_BACKLOG_BUDGET_MB_KEY,
+                SyncMonkeyConstants.DEFAULT_BACKLOG_BUDGET_MB));
+        final int freshFileWindowHours = Math.max(0, SyncMonkeyUtils.getIntPreference(appPreferences,
+                SyncMonkeyConstants.PROPERTY_FRESH_FILE_WINDOW_HOURS_KEY, SyncMonkeyConstants.DEFAULT_FRESH_FILE_WINDOW_HOURS));
+
+        return new BacklogBudget(TimeUnit.HOURS.toMillis(freshFileWindowHours), backlogBudgetMb * BYTES_PER_MB);
     }
 
     /**
-     * Given a directory path, sync all the files in the directory with the provided remote server.
+     * Given a directory path, sync all the files in the directory with the provided remote server. Any files that are
+     * recorded in the {@link SyncStateIndex} as already synced, and have not changed since, are skipped without making
+     * any remote calls. Files that failed to upload in a previous sync are uploaded before any other files, and files
+     * that are still being written to are left for a later sync.
+     * <p>
+     * In append mode, the files are synced to append blobs and any file that has grown since it was last synced has
+     * only its new data sent, which suits log files that are written to continuously. Otherwise, if bundling is turned
+     * on, files below the bundle size threshold are uploaded together in zip archives.
      *
+     * @param azureBlob         The client to upload the files with, or null if the Azure SAS URL is not set.
      * @param syncDirectoryPath The directory to sync.
      * @param deviceId          The device ID which will be used as the folder name on the remote server.
+     * @param appendMode        True to sync the files to append blobs, false to upload them as block blobs.
+     * @param uploadSession     The settings and worker threads to use for the upload.
+     * @param targetFiles       The only files in the directory to upload, or null to scan the whole directory.
+     * @return True if all the files in the directory are synced with the remote server, false if any failed to upload.
      */
-    private boolean processDirectoryForUpload(String syncDirectoryPath, String deviceId)
+    private boolean processDirectoryForUpload(AzureBlob azureBlob, String syncDirectoryPath, String deviceId, boolean appendMode,
+                                              UploadSession uploadSession, List<Path> targetFiles)
     {
+        if (targetFiles != null && targetFiles.isEmpty()) return true;
+
         if (Log.isLoggable(LOG_TAG, Log.INFO))
         {
             Log.i(LOG_TAG, "Syncing the directory: " + syncDirectoryPath);
@@ -311,12 +551,329 @@ public class FileUploadSyncAdapter extends AbstractThreadedSyncAdapter
         final String[] parentDirectories = syncDirectoryPath.split("/");
         final String destinationPath = "/" + deviceId + "/" + parentDirectories[parentDirectories.length - 1] +"/";
 
-        if (azureBlob != null)
+        final StableFileFilter stableFileFilter = uploadSession.getStableFileFilter();
+        final Map<String, Integer> failedUploads = syncStateIndex.getFailedUploads(syncDirectoryPath);
+        final Map<Path, BasicFileAttributes> filesToRetry = new LinkedHashMap<>();
+        final Map<Path, BasicFileAttributes> filesToUpload = new LinkedHashMap<>();
+        final Map<Path, BasicFileAttributes> allFiles = new HashMap<>();
+        final Set<String> existingPaths = new HashSet<>();
+        final SimpleFileVisitor<Path> fileVisitor = new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+            {
+                if (!attributes.isRegularFile()) return FileVisitResult.CONTINUE;
+
+                final String path = file.toString();
+                existingPaths.add(path);
+                if (stableFileFilter.isMarkerFile(path)) return FileVisitResult.CONTINUE;
+
+                allFiles.put(file, attributes);
+                if (!syncStateIndex.isSynced(path, attributes.size(), attributes.lastModifiedTime().toMillis()))
+                {
+                    (failedUploads.containsKey(path) ? filesToRetry : filesToUpload).put(file, attributes);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e)
+            {
+                Log.w(LOG_TAG, "Could not read " + file + " when looking for files to upload", e);
+                return FileVisitResult.CONTINUE;
+            }
+        };
+
+        if (targetFiles == null)
         {
-            azureBlob.uploadFile(syncDirectoryPath, destinationPath);
+            try
+            {
+                Files.walkFileTree(Paths.get(syncDirectoryPath), fileVisitor);
+            } catch (IOException e)
+            {
+                Log.e(LOG_TAG, "Could not walk the sync directory " + syncDirectoryPath, e);
+                return false;
+            }
+
+            syncStateIndex.removeMissingFiles(syncDirectoryPath, existingPaths);
+
+            final long previousScanTimeMs = statusInformation.getLong(SyncMonkeyConstants.STATUS_PROPERTY_LAST_SCAN_TIME_KEY, 0);
+            allFiles.forEach((file, attributes) -> {
+                if (attributes.lastModifiedTime().toMillis() > previousScanTimeMs) uploadSession.addNewDataBytes(attributes.size());
+            });
+        } else
+        {
+            visitTargetFiles(targetFiles, fileVisitor, existingPaths);
         }
 
-        return true;
+        // Files in append mode are expected to be growing, and only the data that is already written is sent
+        if (!appendMode)
+        {
+            // A file that is closed after every write is handed over by the file watcher each time, so targeted syncs
+            // check the stable window too. The watcher queues a file that is not stable yet again, and a file that is
+            // written to after it was handed over is picked up by the watcher again once it is closed.
+            final long now = System.currentTimeMillis();
+            final Predicate<Map.Entry<Path, BasicFileAttributes>> stillBeingWritten = entry ->
+                    !stableFileFilter.isStable(entry.getKey().toString(), entry.getValue().lastModifiedTime().toMillis(), existingPaths, now);
+
+            final int fileCount = filesToRetry.size() + filesToUpload.size();
+            filesToRetry.entrySet().removeIf(stillBeingWritten);
+            filesToUpload.entrySet().removeIf(stillBeingWritten);
+
+            final int deferredCount = fileCount - filesToRetry.size() - filesToUpload.size();
+            if (deferredCount > 0 && Log.isLoggable(LOG_TAG, Log.INFO))
+            {
+                Log.i(LOG_TAG, "Deferring " + deferredCount + " files in " + syncDirectoryPath + " that are still being written");
+            }
+        }
+
+        if (!filesToRetry.isEmpty())
+        {
+            if (Log.isLoggable(LOG_TAG, Log.INFO))
+            {
+                Log.i(LOG_TAG, "Retrying " + filesToRetry.size() + " files in " + syncDirectoryPath + " that failed to upload in a previous sync");
+            }
+
+            // The uploads are started in order, so putting the queued files first means they are uploaded first
+            sortNewestFirst(filesToRetry);
+            sortNewestFirst(filesToUpload);
+            filesToRetry.putAll(filesToUpload);
+            filesToUpload.clear();
+            filesToUpload.putAll(filesToRetry);
+        } else
+        {
+            sortNewestFirst(filesToUpload);
+        }
+
+        // Shared files were sent on purpose by the user, and append mode only sends the latest data, so neither is held back
+        final boolean sharedDirectory = syncDirectoryPath.equals(
+                new File(getContext().getFilesDir(), SyncMonkeyConstants.PRIVATE_SHARED_SYNC_DIRECTORY).getPath());
+        if (!appendMode && !sharedDirectory)
+        {
+            final BacklogBudget backlogBudget = uploadSession.getBacklogBudget();
+            final long now = System.currentTimeMillis();
+            final int fileCount = filesToUpload.size();
+            filesToUpload.entrySet().removeIf(entry ->
+                    !backlogBudget.tryAcquire(entry.getValue().size(), entry.getValue().lastModifiedTime().toMillis(), now));
+
+            final int deferredCount = fileCount - filesToUpload.size();
+            if (deferredCount > 0 && Log.isLoggable(LOG_TAG, Log.INFO))
+            {
+                Log.i(LOG_TAG, "Leaving " + deferredCount + " older files in " + syncDirectoryPath + " for a later sync to stay within the backlog limit");
+            }
+        }
+
+        if (filesToUpload.isEmpty())
+        {
+            if (Log.isLoggable(LOG_TAG, Log.INFO))
+            {
+                Log.i(LOG_TAG, "All the files in " + syncDirectoryPath + " have already been synced");
+            }
+            if (!appendMode && targetFiles == null) applyRetentionPolicy(syncDirectoryPath, allFiles, uploadSession);
+            return true;
+        }
+
+        if (azureBlob == null)
+        {
+            Log.w(LOG_TAG, "Could not upload the files in " + syncDirectoryPath + " because the Azure SAS URL is not set");
+            return false;
+        }
+
+        final UploadResult uploadResult;
+        if (appendMode)
+        {
+            final Map<Path, Long> filesToAppend = new LinkedHashMap<>();
+            filesToUpload.forEach((file, attributes) -> filesToAppend.put(file, attributes.size()));
+            uploadResult = azureBlob.appendFiles(filesToAppend, Paths.get(syncDirectoryPath), destinationPath, uploadSession);
+        } else
+        {
+            final Map<Path, Long> filesToBundle = new LinkedHashMap<>();
+            final List<Path> filesToUploadIndividually = new ArrayList<>();
+            filesToUpload.forEach((file, attributes) -> {
+                if (attributes.size() < uploadSession.getBundleFileSizeThreshold())
+                {
+                    filesToBundle.put(file, attributes.size());
+                } else
+                {
+                    filesToUploadIndividually.add(file);
+                }
+            });
+
+            // Bundling a single file would only add overhead
+            if (filesToBundle.size() < 2)
+            {
+                filesToUploadIndividually.addAll(filesToBundle.keySet());
+                filesToBundle.clear();
+            }
+
+            uploadResult = filesToUploadIndividually.isEmpty() ? new UploadResult()
+                    : azureBlob.uploadFiles(filesToUploadIndividually, Paths.get(syncDirectoryPath), destinationPath, uploadSession);
+            if (!filesToBundle.isEmpty())
+            {
+                uploadResult.addAll(azureBlob.uploadBundles(filesToBundle, Paths.get(syncDirectoryPath), destinationPath, uploadSession));
+            }
+        }
+        uploadResult.getSyncedFiles().forEach((file, blobName) -> {
+            final BasicFileAttributes attributes = filesToUpload.get(file);
+            //noinspection ConstantConditions
+            syncStateIndex.markSynced(file.toString(), attributes.size(), attributes.lastModifiedTime().toMillis(), blobName,
+                    uploadResult.getContentMd5(file));
+            if (failedUploads.containsKey(file.toString())) syncStateIndex.clearFailedUpload(file.toString());
+        });
+
+        // Files that were stopped by a cancel did not fail, so they are not added to the failure queue
+        if (!uploadSession.isCancelled())
+        {
+            uploadResult.getFailedFiles().forEach(file ->
+                    syncStateIndex.recordFailedUpload(file.toString(), failedUploads.getOrDefault(file.toString(), 0) + 1));
+        }
+
+        if (!uploadResult.isSuccessful())
+        {
+            Log.w(LOG_TAG, uploadResult.getFailedFiles().size() + " files in " + syncDirectoryPath + " failed to upload");
+        }
+
+        // Append mode files are still being written to, so they are never removed. A targeted sync leaves the retention
+        // policy to the next full sync, since the size quota needs to see every file in the directory.
+        if (!appendMode && targetFiles == null) applyRetentionPolicy(syncDirectoryPath, allFiles, uploadSession);
+
+        return uploadResult.isSuccessful();
+    }
+
+    /**
+     * Works out the interval until the next periodic sync from how much new data this sync found, and saves it so that
+     * the app process reschedules the {@link ScheduledSyncWorker} with it. Only full syncs are used, since a targeted
+     * sync only sees some of the files.
+     *
+     * @param uploadSession    The session of the full sync that just finished.
+     * @param scanTimeMs       The time the sync started scanning the sync directories, which is when the files written
+     *                         after are counted as new by the next sync.
+     * @param backlogRemaining True if the sync left files that still need to be uploaded.
+     * @since 1.3.0
+     */
+    private void updateSyncInterval(UploadSession uploadSession, long scanTimeMs, boolean backlogRemaining)
+    {
+        final long previousScanTimeMs = statusInformation.getLong(SyncMonkeyConstants.STATUS_PROPERTY_LAST_SCAN_TIME_KEY, 0);
+
+        // Everything looks new on the first sync, so the data rate is only measured from the second sync on
+        long bytesPerHour = statusInformation.getLong(SyncMonkeyConstants.STATUS_PROPERTY_DATA_RATE_KEY, AdaptiveSyncInterval.UNKNOWN_DATA_RATE);
+        if (previousScanTimeMs > 0)
+        {
+            bytesPerHour = AdaptiveSyncInterval.estimateDataRate(bytesPerHour, uploadSession.getNewDataBytes(), scanTimeMs - previousScanTimeMs);
+        }
+
+        final long currentIntervalMs = statusInformation.getLong(SyncMonkeyConstants.STATUS_PROPERTY_SYNC_INTERVAL_KEY,
+                TimeUnit.SECONDS.toMillis(SyncMonkeyConstants.SECONDS_IN_HOUR));
+        final long intervalMs = ScheduledSyncWorker.createSyncInterval(appPreferences)
+                .nextIntervalMs(bytesPerHour, backlogRemaining, currentIntervalMs);
+
+        if (intervalMs != currentIntervalMs && Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, "Changing the sync interval to " + TimeUnit.MILLISECONDS.toMinutes(intervalMs) + " minutes, new data is being written at "
+                    + bytesPerHour + " bytes per hour" + (backlogRemaining ? " and there are files left to upload" : ""));
+        }
+
+        statusInformation.put(SyncMonkeyConstants.STATUS_PROPERTY_LAST_SCAN_TIME_KEY, scanTimeMs);
+        statusInformation.put(SyncMonkeyConstants.STATUS_PROPERTY_DATA_RATE_KEY, bytesPerHour);
+        statusInformation.put(SyncMonkeyConstants.STATUS_PROPERTY_SYNC_INTERVAL_KEY, intervalMs);
+    }
+
+    /**
+     * Picks out the target files of a targeted sync that are in a sync directory.
+     *
+     * @param targetPaths       The paths of the files to sync, or null for a full sync.
+     * @param syncDirectoryPath The sync directory.
+     * @return The target files in the sync directory, or null for a full sync.
+     * @since 1.3.0
+     */
+    private static List<Path> getTargetFiles(List<String> targetPaths, String syncDirectoryPath)
+    {
+        if (targetPaths == null) return null;
+
+        final Path syncDirectory = Paths.get(syncDirectoryPath);
+        final List<Path> targetFiles = new ArrayList<>();
+        for (String targetPath : targetPaths)
+        {
+            final Path targetFile = Paths.get(targetPath);
+            if (targetFile.startsWith(syncDirectory)) targetFiles.add(targetFile);
+        }
+        return targetFiles;
+    }
+
+    /**
+     * Visits the target files of a targeted sync in place of a walk of the whole sync directory. The other files in the
+     * same directories as the target files are added to the existing paths so that marker files are still found.
+     *
+     * @param targetFiles   The files to visit. A directory is walked, which picks up a directory that was moved in.
+     * @param fileVisitor   The visitor that sorts the files into the ones to upload.
+     * @param existingPaths The set to add the paths of the files next to the target files to.
+     * @since 1.3.0
+     */
+    private static void visitTargetFiles(List<Path> targetFiles, SimpleFileVisitor<Path> fileVisitor, Set<String> existingPaths)
+    {
+        final Set<Path> listedDirectories = new HashSet<>();
+        for (Path targetFile : targetFiles)
+        {
+            try
+            {
+                // The file could have been removed or renamed again since it was written
+                if (!Files.exists(targetFile)) continue;
+
+                if (Files.isDirectory(targetFile))
+                {
+                    Files.walkFileTree(targetFile, fileVisitor);
+                    continue;
+                }
+
+                final Path directory = targetFile.getParent();
+                if (directory != null && listedDirectories.add(directory))
+                {
+                    try (Stream<Path> directoryFiles = Files.list(directory))
+                    {
+                        directoryFiles.forEach(file -> existingPaths.add(file.toString()));
+                    }
+                }
+
+                fileVisitor.visitFile(targetFile, Files.readAttributes(targetFile, BasicFileAttributes.class));
+            } catch (IOException e)
+            {
+                Log.w(LOG_TAG, "Could not read " + targetFile + " when looking for files to upload", e);
+            }
+        }
+    }
+
+    /**
+     * Reorders the files so that the most recently modified are first. The uploads are started in order, so this gets
+     * the newest data to the server first when there is a backlog, and it is also the order the backlog budget is spent
+     * in.
+     *
+     * @param files The files to reorder, with their attributes.
+     * @since 1.3.0
+     */
+    private static void sortNewestFirst(Map<Path, BasicFileAttributes> files)
+    {
+        final List<Map.Entry<Path, BasicFileAttributes>> entries = new ArrayList<>(files.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<Path, BasicFileAttributes> entry) -> entry.getValue().lastModifiedTime().toMillis())
+                .reversed());
+
+        files.clear();
+        entries.forEach(entry -> files.put(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Removes the files in a sync directory that have been uploaded and that the retention policy does not keep. Only
+     * files recorded in the {@link SyncStateIndex} as synced with a verified content MD5, and unchanged since, are ever
+     * removed.
+     *
+     * @param syncDirectoryPath The directory that was just synced.
+     * @param allFiles          All the files found in the directory at the start of the sync, with their attributes.
+     * @param uploadSession     The settings for the sync.
+     * @since 1.3.0
+     */
+    private void applyRetentionPolicy(String syncDirectoryPath, Map<Path, BasicFileAttributes> allFiles, UploadSession uploadSession)
+    {
+        // The index entries for the removed files are cleaned up by the scan at the start of the next sync
+        uploadSession.getRetentionPolicy().apply(Paths.get(syncDirectoryPath), allFiles, syncStateIndex, System.currentTimeMillis());
     }
 
     /**
@@ -343,4 +900,16 @@ public class FileUploadSyncAdapter extends AbstractThreadedSyncAdapter
         Log.d(LOG_TAG, "Updating the last successful sync time");
         statusInformation.put(SyncMonkeyConstants.STATUS_PROPERTY_LAST_SUCCESSFUL_TIME_KEY, SyncMonkeyUtils.getDateTimeString(LocalDateTime.now()));
     }
-}
\ No newline at end of file
+
+    /**
+     * Records if there are files that a sync could not upload, so that the {@link ConnectivityMonitor} in the app process
+     * starts a sync as soon as the network needed for the upload is back.
+     *
+     * @param syncPending True if files are waiting to be uploaded, false once a full sync has uploaded everything.
+     * @since 1.3.0
+     */
+    private void setSyncPending(boolean syncPending)
+    {
+        statusInformation.put(SyncMonkeyConstants.STATUS_PROPERTY_SYNC_PENDING_KEY, syncPending);
+    }
+}
@@ -0,0 +1,42 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that reports each successful read of upload data, so that the {@link StallWatchdog} can tell an
+ * upload that is moving slowly apart from one that has stopped.
+ *
+ * @since 1.3.0
+ */
+public class ProgressInputStream extends FilterInputStream
+{
+    private final Runnable progressListener;
+
+    /**
+     * @param inputStream      The stream to read the upload data from.
+     * @param progressListener Called after every read that returns data.
+     */
+    public ProgressInputStream(InputStream inputStream, Runnable progressListener)
+    {
+        super(inputStream);
+        this.progressListener = progressListener;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        final int value = super.read();
+        if (value != -1) progressListener.run();
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        final int bytesRead = super.read(buffer, offset, length);
+        if (bytesRead > 0) progressListener.run();
+        return bytesRead;
+    }
+}
@@ -0,0 +1,45 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+/**
+ * What to do with local files once they have been uploaded.
+ *
+ * @since 1.3.0
+ */
+public enum RetentionMode
+{
+    /**
+     * Leave the files where they are.
+     */
+    KEEP,
+
+    /**
+     * Delete the files as soon as they have been uploaded.
+     */
+    DELETE,
+
+    /**
+     * Move the files to an archive directory outside of the sync directory as soon as they have been uploaded.
+     */
+    ARCHIVE,
+
+    /**
+     * Keep the files until the sync directory is over its size quota or the files are older than the maximum age, and
+     * then delete the oldest uploaded files first.
+     */
+    QUOTA;
+
+    /**
+     * @param preferenceValue The value of the {@link SyncMonkeyConstants#PROPERTY_RETENTION_MODE_KEY} preference.
+     * @return The mode that corresponds to the preference value, defaulting to {@link #KEEP} for unknown values.
+     */
+    public static RetentionMode fromPreference(String preferenceValue)
+    {
+        if (SyncMonkeyConstants.RETENTION_MODE_DELETE.equals(preferenceValue)) return DELETE;
+        if (SyncMonkeyConstants.RETENTION_MODE_ARCHIVE.equals(preferenceValue)) return ARCHIVE;
+        if (SyncMonkeyConstants.RETENTION_MODE_QUOTA.equals(preferenceValue)) return QUOTA;
+
+        return KEEP;
+    }
+}
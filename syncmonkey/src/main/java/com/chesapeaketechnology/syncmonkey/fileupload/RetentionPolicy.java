@@ -0,0 +1,229 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Frees up local storage by removing files from a sync directory once they have been uploaded. Without this, the sync
+ * directories only ever grow, which slows down both the apps writing the files and the scan of the directory at the
+ * start of each sync.
+ * <p>
+ * Only files that the {@link SyncStateIndex} records as synced, with the same size and last modified time they have
+ * now, and with a content MD5 from the upload or from a matching hash on the blob, are ever removed. A file that has
+ * not been uploaded, has changed since it was, or was only matched to an existing blob by its name, is always kept.
+ * Archived files never replace an earlier archived file with the same path; the newer one is given a numbered name.
+ *
+ * @since 1.3.0
+ */
+public class RetentionPolicy
+{
+    private static final String LOG_TAG = RetentionPolicy.class.getSimpleName();
+
+    private final RetentionMode retentionMode;
+    private final String archiveDirectoryName;
+    private final long maxSizeBytes;
+    private final long maxAgeMs;
+
+    /**
+     * @param retentionMode        What to do with files once they have been uploaded.
+     * @param archiveDirectoryName The name of the directory, next to each sync directory, to move the files to in the
+     *                             {@link RetentionMode#ARCHIVE} mode.
+     * @param maxSizeBytes         The size in bytes that each sync directory is kept under in the
+     *                             {@link RetentionMode#QUOTA} mode, or 0 for no size limit.
+     * @param maxAgeMs             How long uploaded files are kept for in the {@link RetentionMode#QUOTA} mode, based on
+     *                             their last modified time, or 0 for no age limit.
+     */
+    public RetentionPolicy(RetentionMode retentionMode, String archiveDirectoryName, long maxSizeBytes, long maxAgeMs)
+    {
+        this.retentionMode = retentionMode;
+        this.archiveDirectoryName = archiveDirectoryName;
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    public RetentionMode getRetentionMode()
+    {
+        return retentionMode;
+    }
+
+    /**
+     * Removes the uploaded files from a sync directory that this policy does not keep.
+     *
+     * @param syncDirectory  The sync directory the files are in.
+     * @param files          All the files in the sync directory, with their attributes from the scan at the start of the
+     *                       sync.
+     * @param syncStateIndex The index used to check that each file's content is in blob storage.
+     * @param nowMs          The current time in milliseconds since the epoch.
+     * @return The number of files that were removed.
+     */
+    public int apply(Path syncDirectory, Map<Path, BasicFileAttributes> files, SyncStateIndex syncStateIndex, long nowMs)
+    {
+        return apply(syncDirectory, files, syncStateIndex::isVerifiedSynced, nowMs);
+    }
+
+    /**
+     * Removes the uploaded files from a sync directory that this policy does not keep. The files are picked from the
+     * attributes found by the scan, but each file's attributes are read again right before it is removed, and the file
+     * is kept if it has changed since it was uploaded, for example because more data was written to it during the sync.
+     *
+     * @param syncDirectory The sync directory the files are in.
+     * @param files         All the files in the sync directory, with their attributes from the scan at the start of the
+     *                      sync.
+     * @param syncCheck     Checks that a file's content, at the provided size and last modified time, is in blob storage.
+     * @param nowMs         The current time in milliseconds since the epoch.
+     * @return The number of files that were removed.
+     */
+    int apply(Path syncDirectory, Map<Path, BasicFileAttributes> files, SyncCheck syncCheck, long nowMs)
+    {
+        if (retentionMode == RetentionMode.KEEP) return 0;
+
+        final List<Path> filesToRemove = selectFilesToRemove(files, file -> {
+            final BasicFileAttributes attributes = files.get(file);
+            return syncCheck.isVerifiedSynced(file.toString(), attributes.size(), attributes.lastModifiedTime().toMillis());
+        }, nowMs);
+
+        final Path archiveDirectory = syncDirectory.resolveSibling(archiveDirectoryName).resolve(syncDirectory.getFileName());
+
+        int removedCount = 0;
+        for (Path file : filesToRemove)
+        {
+            try
+            {
+                final BasicFileAttributes currentAttributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (!syncCheck.isVerifiedSynced(file.toString(), currentAttributes.size(), currentAttributes.lastModifiedTime().toMillis()))
+                {
+                    if (Log.isLoggable(LOG_TAG, Log.INFO))
+                    {
+                        Log.i(LOG_TAG, "Keeping " + file + " because it has changed since it was uploaded");
+                    }
+                    continue;
+                }
+
+                if (retentionMode == RetentionMode.ARCHIVE)
+                {
+                    final Path archivedFile = archiveDirectory.resolve(syncDirectory.relativize(file).toString());
+                    Files.createDirectories(archivedFile.getParent());
+                    moveToUnusedPath(file, archivedFile);
+                } else
+                {
+                    Files.deleteIfExists(file);
+                }
+                removedCount++;
+            } catch (IOException e)
+            {
+                Log.w(LOG_TAG, "Could not remove the uploaded file " + file, e);
+            }
+        }
+
+        if (removedCount > 0 && Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, (retentionMode == RetentionMode.ARCHIVE ? "Archived " : "Deleted ") + removedCount + " uploaded files from "
+                    + syncDirectory);
+        }
+
+        return removedCount;
+    }
+
+    /**
+     * Moves a file into the archive without replacing an archived file that is already there. If the target path is
+     * taken, for example because a file with the same name was written and archived again, a number is added to the
+     * file name before its extension ("data.csv" becomes "data-1.csv", then "data-2.csv", and so on).
+     *
+     * @param file         The file to move.
+     * @param archivedFile The path to move the file to if it is not taken.
+     * @return The path the file was moved to.
+     * @throws IOException If the file could not be moved.
+     */
+    static Path moveToUnusedPath(Path file, Path archivedFile) throws IOException
+    {
+        final String fileName = archivedFile.getFileName().toString();
+        final int extensionIndex = fileName.lastIndexOf('.');
+        final String baseName = extensionIndex > 0 ? fileName.substring(0, extensionIndex) : fileName;
+        final String extension = extensionIndex > 0 ? fileName.substring(extensionIndex) : "";
+
+        Path target = archivedFile;
+        for (int suffix = 1; ; suffix++)
+        {
+            try
+            {
+                // Without REPLACE_EXISTING the move fails rather than overwriting, so two syncs can't both claim a name
+                return Files.move(file, target);
+            } catch (FileAlreadyExistsException e)
+            {
+                target = archivedFile.resolveSibling(baseName + "-" + suffix + extension);
+            }
+        }
+    }
+
+    /**
+     * Works out which files this policy removes.
+     *
+     * @param files    All the files in the sync directory, with their attributes.
+     * @param isSynced Checks if a file's content is in blob storage and the file has not changed since.
+     * @param nowMs    The current time in milliseconds since the epoch.
+     * @return The files to remove. In the {@link RetentionMode#QUOTA} mode, the files are in the order they were last
+     * modified, oldest first.
+     */
+    List<Path> selectFilesToRemove(Map<Path, BasicFileAttributes> files, Predicate<Path> isSynced, long nowMs)
+    {
+        final List<Path> filesToRemove = new ArrayList<>();
+        if (retentionMode == RetentionMode.KEEP) return filesToRemove;
+
+        if (retentionMode != RetentionMode.QUOTA)
+        {
+            for (Path file : files.keySet())
+            {
+                if (isSynced.test(file)) filesToRemove.add(file);
+            }
+            return filesToRemove;
+        }
+
+        long totalSize = 0;
+        final List<Path> syncedFiles = new ArrayList<>();
+        for (Map.Entry<Path, BasicFileAttributes> file : files.entrySet())
+        {
+            totalSize += file.getValue().size();
+            if (isSynced.test(file.getKey())) syncedFiles.add(file.getKey());
+        }
+
+        // The least recently written files are removed first
+        syncedFiles.sort(Comparator.comparingLong(file -> files.get(file).lastModifiedTime().toMillis()));
+
+        for (Path file : syncedFiles)
+        {
+            final BasicFileAttributes attributes = files.get(file);
+            final boolean overQuota = maxSizeBytes > 0 && totalSize > maxSizeBytes;
+            final boolean tooOld = maxAgeMs > 0 && nowMs - attributes.lastModifiedTime().toMillis() > maxAgeMs;
+            if (!overQuota && !tooOld) continue;
+
+            filesToRemove.add(file);
+            totalSize -= attributes.size();
+        }
+
+        return filesToRemove;
+    }
+
+    /**
+     * Checks if the content of a file is known to be in blob storage.
+     */
+    interface SyncCheck
+    {
+        /**
+         * @param path         The absolute path to the local file.
+         * @param size         The size of the file in bytes.
+         * @param lastModified The last modified time of the file in milliseconds since the epoch.
+         * @return True if the file was uploaded with this size and last modified time, and its content was verified.
+         */
+        boolean isVerifiedSynced(String path, long size, long lastModified);
+    }
+}
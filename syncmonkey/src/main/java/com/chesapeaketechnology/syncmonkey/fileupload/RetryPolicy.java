@@ -0,0 +1,219 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.util.Log;
+
+import com.microsoft.azure.storage.StorageException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Retries blob storage operations that fail with a transient error, such as a timeout, a dropped connection, or the
+ * service throttling requests. Each retry waits for an exponentially increasing delay, capped at a maximum, with
+ * random jitter added so that the parallel upload threads don't all retry at the same moment.
+ * <p>
+ * Errors that will not go away by retrying, such as an authorization failure or a failed access condition, are
+ * rethrown straight away. Blob storage errors are also found when they reach the operation wrapped in an I/O error, so
+ * they are retried the same way.
+ * <p>
+ * A policy can be tied to an upload session with {@link #stopWhen(BooleanSupplier)}. Cancelling the session
+ * disconnects its requests, which fail with what looks like a dropped connection, so once the session is cancelled
+ * the failure is rethrown straight away instead of being retried.
+ *
+ * @since 1.3.0
+ */
+public class RetryPolicy
+{
+    private static final String LOG_TAG = RetryPolicy.class.getSimpleName();
+
+    /**
+     * The status code the storage SDK uses when a request fails on the client side, for example because the
+     * connection was reset before a response was received.
+     */
+    private static final int HTTP_CLIENT_SIDE_ERROR = 306;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final BooleanSupplier cancelled;
+
+    /**
+     * @param maxAttempts The maximum number of times to attempt an operation, including the first attempt.
+     * @param baseDelayMs The delay before the first retry, which doubles for each retry after that.
+     * @param maxDelayMs  The maximum delay between two attempts.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs)
+    {
+        this(maxAttempts, baseDelayMs, maxDelayMs, () -> false);
+    }
+
+    private RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs, BooleanSupplier cancelled)
+    {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * @param cancelled Returns true once the operations run with the returned policy should no longer be attempted.
+     * @return A copy of this policy that stops retrying, and stops starting new attempts, once cancelled.
+     */
+    public RetryPolicy stopWhen(BooleanSupplier cancelled)
+    {
+        return new RetryPolicy(maxAttempts, baseDelayMs, maxDelayMs, cancelled);
+    }
+
+    /**
+     * Runs the provided operation, retrying it if it fails with a transient error. The operation must be safe to run
+     * more than once, so any streams it reads from need to be created inside the operation.
+     *
+     * @param description A short description of the operation to use in the log.
+     * @param operation   The operation to run.
+     * @return The value returned by the operation.
+     * @throws StorageException If the operation failed with an error that is not transient, or it still failed after
+     *                          the maximum number of attempts.
+     * @throws IOException      If the operation failed with an I/O error that is not transient, or it still failed
+     *                          after the maximum number of attempts, or the thread was interrupted while waiting to
+     *                          retry. An {@link InterruptedIOException} is thrown if the policy was cancelled before
+     *                          an attempt.
+     */
+    public <T> T execute(String description, StorageOperation<T> operation) throws StorageException, IOException
+    {
+        for (int attempt = 1; ; attempt++)
+        {
+            if (cancelled.getAsBoolean()) throw new InterruptedIOException("Cancelled before an attempt to " + description);
+
+            try
+            {
+                return operation.run();
+            } catch (StorageException e)
+            {
+                if (attempt >= maxAttempts || cancelled.getAsBoolean() || !isTransient(e)) throw e;
+                waitToRetry(description, attempt, "status " + e.getHttpStatusCode());
+            } catch (IOException e)
+            {
+                if (attempt >= maxAttempts || cancelled.getAsBoolean() || !isTransient(e)) throw e;
+                waitToRetry(description, attempt, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Logs a failed attempt and waits for the backoff delay before the next one.
+     *
+     * @param description A short description of the operation to use in the log.
+     * @param attempt     The number of attempts that have failed so far, starting at 1.
+     * @param failure     A short description of why the attempt failed.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    private void waitToRetry(String description, int attempt, String failure) throws InterruptedIOException
+    {
+        final long delayMs = getBackoffDelay(attempt, ThreadLocalRandom.current());
+        Log.w(LOG_TAG, "Attempt " + attempt + " of " + maxAttempts + " to " + description + " failed with " + failure
+                + ", retrying in " + delayMs + "ms");
+
+        try
+        {
+            Thread.sleep(delayMs);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry an attempt to " + description);
+        }
+    }
+
+    /**
+     * Works out how long to wait before the next attempt. Half of the delay is fixed so that a throttled client always
+     * backs off, and the other half is random so that the upload threads spread their retries out.
+     *
+     * @param attempt The number of attempts that have failed so far, starting at 1.
+     * @param random  The source of the jitter.
+     * @return The delay in milliseconds.
+     */
+    long getBackoffDelay(int attempt, Random random)
+    {
+        final int shift = Math.min(attempt - 1, 30);
+        final long cappedDelayMs = Math.min(maxDelayMs, baseDelayMs << shift);
+        final long halfDelayMs = cappedDelayMs / 2;
+
+        return halfDelayMs + (long) (random.nextDouble() * (cappedDelayMs - halfDelayMs));
+    }
+
+    /**
+     * @param e The error that an operation failed with.
+     * @return True if the error is likely to go away if the operation is tried again.
+     */
+    static boolean isTransient(StorageException e)
+    {
+        switch (e.getHttpStatusCode())
+        {
+            case HttpURLConnection.HTTP_CLIENT_TIMEOUT:
+            case HTTP_TOO_MANY_REQUESTS:
+            case HttpURLConnection.HTTP_INTERNAL_ERROR:
+            case HttpURLConnection.HTTP_BAD_GATEWAY:
+            case HttpURLConnection.HTTP_UNAVAILABLE:
+            case HttpURLConnection.HTTP_GATEWAY_TIMEOUT:
+                return true;
+
+            case HTTP_CLIENT_SIDE_ERROR:
+                // Network errors, including socket timeouts, are wrapped by the SDK, as is a request that ran past the
+                // maximum execution time
+                return e.getCause() instanceof IOException || e.getCause() instanceof TimeoutException;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param e The I/O error that an operation failed with.
+     * @return True if the error is likely to go away if the operation is tried again. This is the case for a transient
+     * blob storage error that the storage SDK has wrapped in an I/O error, and for a network error that reached the
+     * operation without being wrapped.
+     */
+    static boolean isTransient(IOException e)
+    {
+        final StorageException storageException = findStorageException(e);
+        if (storageException != null) return isTransient(storageException);
+
+        // An interrupted I/O error means the upload was cancelled, but a socket timeout is a subclass of it
+        return e instanceof SocketTimeoutException || e instanceof SocketException;
+    }
+
+    /**
+     * Finds the blob storage error behind an exception. The storage SDK's streams report errors from blob storage as
+     * an I/O error with the storage error as its cause.
+     *
+     * @param throwable The exception that an operation failed with.
+     * @return The storage error, or null if the exception was not caused by one.
+     */
+    static StorageException findStorageException(Throwable throwable)
+    {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause())
+        {
+            if (cause instanceof StorageException) return (StorageException) cause;
+        }
+        return null;
+    }
+
+    /**
+     * A blob storage operation that can be retried.
+     *
+     * @param <T> The type of the value returned by the operation.
+     */
+    @FunctionalInterface
+    public interface StorageOperation<T>
+    {
+        T run() throws StorageException, IOException;
+    }
+}
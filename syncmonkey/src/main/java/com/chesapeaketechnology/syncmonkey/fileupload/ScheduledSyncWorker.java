@@ -0,0 +1,184 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyUtils;
+
+import net.grandcentrix.tray.AppPreferences;
+import net.grandcentrix.tray.TrayPreferences;
+import net.grandcentrix.tray.core.OnTrayPreferenceChangeListener;
+import net.grandcentrix.tray.core.TrayItem;
+import net.grandcentrix.tray.core.TrayStorage;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts the periodic sync once the conditions it needs are met. The constraints are handed to WorkManager up front,
+ * so the device is only woken, and the sync process only started, when there is a suitable network and enough battery,
+ * instead of waking every hour and then finding out in the sync adapter that the upload can't go ahead. The work
+ * itself just requests a sync, so all the uploads still run through the {@link FileUploadSyncAdapter}.
+ * <p>
+ * When Wi-Fi Only is turned on the work requires an unmetered network, so the device is not woken for a sync that
+ * would only be skipped on a cellular network. The sync adapter still checks for Wi-Fi itself before uploading, since
+ * an unmetered network is not always a Wi-Fi network, and the {@link ConnectivityMonitor} starts a sync when the
+ * required network comes back.
+ * <p>
+ * The period comes from the {@link AdaptiveSyncInterval} that the sync adapter updates after each full sync. The
+ * sync adapter runs in its own process where WorkManager is not available, so the app process watches for a new
+ * interval, and for changes to the settings the schedule is made from, and reschedules the work from outside of it
+ * (see {@link #watchScheduleSettings(Context)}). Rescheduling from within the work itself would cancel the running
+ * work and start the new period straight away.
+ *
+ * @since 1.3.0
+ */
+public class ScheduledSyncWorker extends Worker
+{
+    private static final String LOG_TAG = ScheduledSyncWorker.class.getSimpleName();
+
+    private static final String UNIQUE_WORK_NAME = "SyncMonkeyPeriodicSync";
+
+    private static final Set<String> SCHEDULE_PREFERENCE_KEYS = new HashSet<>(Arrays.asList(
+            SyncMonkeyConstants.PROPERTY_AUTO_SYNC_KEY,
+            SyncMonkeyConstants.PROPERTY_WIFI_ONLY_KEY,
+            SyncMonkeyConstants.PROPERTY_CHARGING_ONLY_KEY,
+            SyncMonkeyConstants.PROPERTY_MIN_SYNC_INTERVAL_MINUTES_KEY,
+            SyncMonkeyConstants.PROPERTY_MAX_SYNC_INTERVAL_MINUTES_KEY,
+            SyncMonkeyConstants.STATUS_PROPERTY_SYNC_INTERVAL_KEY));
+
+    private static AppPreferences watchedAppPreferences;
+    private static TrayPreferences watchedStatusInformation;
+    private static OnTrayPreferenceChangeListener scheduleSettingsListener;
+
+    public ScheduledSyncWorker(@NonNull Context context, @NonNull WorkerParameters workerParameters)
+    {
+        super(context, workerParameters);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork()
+    {
+        // The app process may have been restarted since the watches and callbacks were added, so this puts them back
+        SyncDirectoryWatcher.update(getApplicationContext());
+        ConnectivityMonitor.getInstance(getApplicationContext()).startSyncTrigger();
+        watchScheduleSettings(getApplicationContext());
+
+        final AppPreferences appPreferences = new AppPreferences(getApplicationContext());
+        if (!appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_AUTO_SYNC_KEY, true))
+        {
+            Log.i(LOG_TAG, "Skipping the scheduled sync because Auto Sync is turned off");
+            return Result.success();
+        }
+
+        FileUploadSyncAdapter.runSyncAdapterNow(getApplicationContext());
+
+        return Result.success();
+    }
+
+    /**
+     * Reschedules the periodic sync whenever the sync adapter saves a new sync interval, or one of the settings the
+     * schedule is made from (Auto Sync, Wi-Fi Only, Charging Only and the min and max intervals) is changed. This can be
+     * called any number of times, and only adds the listeners once for each process.
+     *
+     * @param context The context to get the preferences and the {@link WorkManager} with.
+     */
+    public static synchronized void watchScheduleSettings(Context context)
+    {
+        if (scheduleSettingsListener != null) return;
+
+        final Context applicationContext = context.getApplicationContext();
+        watchedAppPreferences = new AppPreferences(applicationContext);
+        watchedStatusInformation = new TrayPreferences(applicationContext, SyncMonkeyConstants.TRAY_STATUS_MODULE, 1, TrayStorage.Type.DEVICE);
+        scheduleSettingsListener = items -> {
+            for (TrayItem item : items)
+            {
+                if (!SCHEDULE_PREFERENCE_KEYS.contains(item.key())) continue;
+
+                if (new AppPreferences(applicationContext).getBoolean(SyncMonkeyConstants.PROPERTY_AUTO_SYNC_KEY, true))
+                {
+                    schedule(applicationContext);
+                }
+                return;
+            }
+        };
+        watchedAppPreferences.registerOnTrayPreferenceChangeListener(scheduleSettingsListener);
+        watchedStatusInformation.registerOnTrayPreferenceChangeListener(scheduleSettingsListener);
+    }
+
+    /**
+     * Schedules the periodic sync with the constraints from the current preferences. An existing schedule is kept as is
+     * unless the constraints or the interval have changed since it was made, so calling this every time the app is
+     * opened does not keep pushing the next sync back. When an existing schedule is replaced, the first run of the new
+     * schedule is a full interval away, rather than straight away.
+     *
+     * @param context The context to get the preferences and the {@link WorkManager} with.
+     */
+    public static void schedule(Context context)
+    {
+        final AppPreferences appPreferences = new AppPreferences(context);
+        final boolean wifiOnly = appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_WIFI_ONLY_KEY, true);
+        final boolean chargingOnly = appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_CHARGING_ONLY_KEY, false);
+
+        final TrayPreferences statusInformation = new TrayPreferences(context, SyncMonkeyConstants.TRAY_STATUS_MODULE, 1, TrayStorage.Type.DEVICE);
+        final long savedIntervalMs = statusInformation.getLong(SyncMonkeyConstants.STATUS_PROPERTY_SYNC_INTERVAL_KEY,
+                TimeUnit.SECONDS.toMillis(SyncMonkeyConstants.SECONDS_IN_HOUR));
+        final long intervalMinutes = TimeUnit.MILLISECONDS.toMinutes(createSyncInterval(appPreferences).clamp(savedIntervalMs));
+
+        final Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(wifiOnly ? NetworkType.UNMETERED : NetworkType.CONNECTED)
+                .setRequiresBatteryNotLow(true)
+                .setRequiresCharging(chargingOnly)
+                .build();
+
+        final String scheduleDescription = "wifiOnly=" + wifiOnly + ",chargingOnly=" + chargingOnly + ",periodMinutes=" + intervalMinutes;
+        final String previousScheduleDescription = statusInformation.getString(SyncMonkeyConstants.STATUS_PROPERTY_SCHEDULED_SYNC_KEY, "");
+        final boolean scheduleChanged = !scheduleDescription.equals(previousScheduleDescription);
+
+        final PeriodicWorkRequest.Builder workRequestBuilder = new PeriodicWorkRequest.Builder(ScheduledSyncWorker.class,
+                intervalMinutes, TimeUnit.MINUTES, intervalMinutes / 2, TimeUnit.MINUTES)
+                .setConstraints(constraints);
+
+        // Replacing a schedule would otherwise run the new one straight away, and a sync has usually only just finished
+        if (scheduleChanged && !previousScheduleDescription.isEmpty()) workRequestBuilder.setInitialDelay(intervalMinutes, TimeUnit.MINUTES);
+        final PeriodicWorkRequest workRequest = workRequestBuilder.build();
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, (scheduleChanged ? "Scheduling" : "Keeping") + " the periodic sync with " + scheduleDescription);
+        }
+
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(UNIQUE_WORK_NAME,
+                scheduleChanged ? ExistingPeriodicWorkPolicy.REPLACE : ExistingPeriodicWorkPolicy.KEEP, workRequest);
+        statusInformation.put(SyncMonkeyConstants.STATUS_PROPERTY_SCHEDULED_SYNC_KEY, scheduleDescription);
+    }
+
+    /**
+     * Creates the policy for adapting the sync interval from the min and max intervals in the preferences.
+     *
+     * @param appPreferences The preferences to read the intervals from.
+     */
+    static AdaptiveSyncInterval createSyncInterval(AppPreferences appPreferences)
+    {
+        final int minIntervalMinutes = Math.max(SyncMonkeyConstants.MIN_SYNC_INTERVAL_MINUTES, SyncMonkeyUtils.getIntPreference(appPreferences,
+                SyncMonkeyConstants.PROPERTY_MIN_SYNC_INTERVAL_MINUTES_KEY, SyncMonkeyConstants.DEFAULT_MIN_SYNC_INTERVAL_MINUTES));
+        final int maxIntervalMinutes = Math.max(minIntervalMinutes, SyncMonkeyUtils.getIntPreference(appPreferences,
+                SyncMonkeyConstants.PROPERTY_MAX_SYNC_INTERVAL_MINUTES_KEY, SyncMonkeyConstants.DEFAULT_MAX_SYNC_INTERVAL_MINUTES));
+
+        return new AdaptiveSyncInterval(TimeUnit.MINUTES.toMillis(minIntervalMinutes), TimeUnit.MINUTES.toMillis(maxIntervalMinutes),
+                SyncMonkeyConstants.ADAPTIVE_SYNC_TARGET_BYTES);
+    }
+}
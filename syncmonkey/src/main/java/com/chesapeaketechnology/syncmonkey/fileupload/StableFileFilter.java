@@ -0,0 +1,97 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides if a file has finished being written and can be uploaded. Uploading a file that another app is still
+ * writing to would send a truncated copy, so any file that is still active is deferred to a later sync.
+ * <p>
+ * A file is treated as still being written if it was modified within the stable window, or if there is a marker file
+ * next to it, which is the file name with one of the marker suffixes added (for example "survey.csv.lock"). Files
+ * that end with one of the marker suffixes are never uploaded, which also covers apps that write to a temporary name
+ * such as "survey.csv.part" and rename the file once it is complete.
+ *
+ * @since 1.3.0
+ */
+public class StableFileFilter
+{
+    private final long stableWindowMs;
+    private final List<String> markerSuffixes;
+
+    /**
+     * @param stableWindowMs How long a file must go without being modified before it is uploaded, or 0 to upload files
+     *                       no matter how recently they were modified.
+     * @param markerSuffixes The suffixes that mark a file as in progress.
+     */
+    public StableFileFilter(long stableWindowMs, List<String> markerSuffixes)
+    {
+        this.stableWindowMs = stableWindowMs;
+        this.markerSuffixes = markerSuffixes;
+    }
+
+    /**
+     * @param path The path to a file.
+     * @return True if the file is a marker file or a temporary in progress file, which should never be uploaded.
+     */
+    public boolean isMarkerFile(String path)
+    {
+        for (String markerSuffix : markerSuffixes)
+        {
+            if (path.endsWith(markerSuffix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param path           The path to the file to check.
+     * @param lastModifiedMs The last modified time of the file in milliseconds since the epoch.
+     * @param existingPaths  The paths of all the files in the sync directory, which is used to look for marker files
+     *                       without any extra file system calls.
+     * @param nowMs          The current time in milliseconds since the epoch.
+     * @return True if the file looks like it has finished being written.
+     */
+    public boolean isStable(String path, long lastModifiedMs, Set<String> existingPaths, long nowMs)
+    {
+        if (nowMs - lastModifiedMs < stableWindowMs) return false;
+
+        return !hasMarkerFile(path, existingPaths);
+    }
+
+    /**
+     * @param lastModifiedMs The last modified time of the file in milliseconds since the epoch.
+     * @param nowMs          The current time in milliseconds since the epoch.
+     * @return How long in milliseconds until the file has gone unmodified for the stable window, or 0 if it already has.
+     */
+    public long getRemainingWindowMs(long lastModifiedMs, long nowMs)
+    {
+        return Math.max(0, lastModifiedMs + stableWindowMs - nowMs);
+    }
+
+    /**
+     * @param path          The path to the file to check.
+     * @param existingPaths The paths of the files in the same directory as the file.
+     * @return True if there is a marker file next to the file, which means it is still being written.
+     */
+    public boolean hasMarkerFile(String path, Set<String> existingPaths)
+    {
+        for (String markerSuffix : markerSuffixes)
+        {
+            if (existingPaths.contains(path + markerSuffix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param path The path to a file.
+     * @return The path of the file that the marker file is for, or null if the file is not a marker file.
+     */
+    public String getMarkedPath(String path)
+    {
+        for (String markerSuffix : markerSuffixes)
+        {
+            if (path.endsWith(markerSuffix)) return path.substring(0, path.length() - markerSuffix.length());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,185 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Watches the blob storage operations of an upload session for stalls. An operation has stalled when it has a request
+ * in flight but has made no progress for longer than the stall timeout, which usually means the connection is half
+ * open, for example after a VPN drops. The connections of a stalled operation are disconnected so that the request
+ * fails with an I/O error, which the {@link RetryPolicy} treats as transient and retries on a new connection.
+ * <p>
+ * Progress is counted whenever a request is sent, a response is received, or the storage SDK reads a piece of a
+ * request body to send it, which happens throughout the request rather than once per block. When the upload rate is
+ * limited, each read of a request body waits for its share of the rate, so the stall timeout must be longer than the
+ * few seconds that a read can wait when every worker is uploading at once (see {@link ThrottledInputStream}).
+ *
+ * @since 1.3.0
+ */
+public class StallWatchdog implements Closeable
+{
+    private static final String LOG_TAG = StallWatchdog.class.getSimpleName();
+
+    private static final long MIN_CHECK_INTERVAL_MS = 1000;
+
+    private final long stallTimeoutNanos;
+    private final LongSupplier nanoClock;
+    private final Set<Operation> operations = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param stallTimeoutMs How long an operation can go without progress before it is aborted, or 0 to never abort
+     *                       operations that stall.
+     */
+    public StallWatchdog(long stallTimeoutMs)
+    {
+        this(stallTimeoutMs, System::nanoTime, stallTimeoutMs > 0);
+    }
+
+    StallWatchdog(long stallTimeoutMs, LongSupplier nanoClock, boolean scheduleChecks)
+    {
+        stallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(stallTimeoutMs);
+        this.nanoClock = nanoClock;
+
+        if (scheduleChecks)
+        {
+            final long checkIntervalMs = Math.max(MIN_CHECK_INTERVAL_MS, stallTimeoutMs / 4);
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+            scheduler.scheduleWithFixedDelay(this::abortStalledOperations, checkIntervalMs, checkIntervalMs, TimeUnit.MILLISECONDS);
+        } else
+        {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Starts watching a new operation.
+     *
+     * @return The operation, which must be passed to {@link #release(Operation)} once it is complete.
+     */
+    public Operation track()
+    {
+        final Operation operation = new Operation();
+        operations.add(operation);
+        return operation;
+    }
+
+    /**
+     * Stops watching an operation once it is complete.
+     *
+     * @param operation The operation to stop watching.
+     */
+    public void release(Operation operation)
+    {
+        operations.remove(operation);
+    }
+
+    /**
+     * Disconnects every request that is in flight, whether it has stalled or not.
+     */
+    public void disconnectAll()
+    {
+        operations.forEach(Operation::disconnect);
+    }
+
+    @Override
+    public void close()
+    {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+
+    /**
+     * Disconnects the requests of every operation that has a request in flight and has gone longer than the stall
+     * timeout without making any progress.
+     *
+     * @return The number of operations that were aborted.
+     */
+    int checkForStalls()
+    {
+        final long nowNanos = nanoClock.getAsLong();
+
+        final List<Operation> stalledOperations = new ArrayList<>();
+        for (Operation operation : operations)
+        {
+            if (!operation.connections.isEmpty() && nowNanos - operation.lastProgressNanos > stallTimeoutNanos)
+            {
+                stalledOperations.add(operation);
+            }
+        }
+
+        for (Operation stalledOperation : stalledOperations)
+        {
+            // Give the retry a fresh stall window
+            stalledOperation.lastProgressNanos = nowNanos;
+            stalledOperation.disconnect();
+        }
+
+        return stalledOperations.size();
+    }
+
+    private void abortStalledOperations()
+    {
+        final int stalledOperationCount = checkForStalls();
+        if (stalledOperationCount > 0)
+        {
+            Log.w(LOG_TAG, "Aborted " + stalledOperationCount + " blob storage operations that made no progress for "
+                    + TimeUnit.NANOSECONDS.toSeconds(stallTimeoutNanos) + " seconds");
+        }
+    }
+
+    /**
+     * The connections and progress of a single blob storage operation, which can be made up of several requests.
+     */
+    public class Operation
+    {
+        private final Set<HttpURLConnection> connections = ConcurrentHashMap.newKeySet();
+        private volatile long lastProgressNanos = nanoClock.getAsLong();
+
+        /**
+         * @param connection The connection a request of this operation is being sent on.
+         */
+        public void requestStarted(HttpURLConnection connection)
+        {
+            connections.add(connection);
+            recordProgress();
+        }
+
+        /**
+         * @param connection The connection that a response was received on, or that a request failed on. A request can
+         *                   finish more than once, for example when a response is received and the request then
+         *                   completes.
+         */
+        public void requestFinished(HttpURLConnection connection)
+        {
+            connections.remove(connection);
+            recordProgress();
+        }
+
+        /**
+         * Records that the operation is still moving, for example because upload data was handed to the storage SDK.
+         */
+        public void recordProgress()
+        {
+            lastProgressNanos = nanoClock.getAsLong();
+        }
+
+        private void disconnect()
+        {
+            for (HttpURLConnection connection : connections)
+            {
+                connection.disconnect();
+            }
+            connections.clear();
+        }
+    }
+}
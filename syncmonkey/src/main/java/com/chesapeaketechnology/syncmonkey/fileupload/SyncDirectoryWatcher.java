@@ -0,0 +1,294 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Environment;
+import android.os.FileObserver;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyUtils;
+
+import net.grandcentrix.tray.AppPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the sync directories for new and changed files, and starts a sync of just those files shortly after they are
+ * written, instead of leaving them until the next periodic sync. Each directory in the tree gets its own
+ * {@link FileObserver}, because a single observer only sees the files directly in its directory, and new directories
+ * are watched as soon as they are created.
+ * <p>
+ * A file is picked up once it is closed after writing or moved into a sync directory, and the changes are batched with
+ * a {@link DebouncedPathQueue} so that a burst of new files goes out in one sync. A file that was modified within the
+ * stable window when its batch is handed over is held back and queued again once the window has passed, so a file
+ * that is closed after every write is only uploaded once it has been left alone. Deleting a marker file also picks up
+ * the file it was marking, since that file is now finished.
+ * <p>
+ * The observers only live as long as the app process. They are started again when the device boots, when the app is
+ * opened, and by each {@link ScheduledSyncWorker} run, and the periodic sync still picks up anything that was missed.
+ *
+ * @since 1.3.0
+ */
+public class SyncDirectoryWatcher
+{
+    private static final String LOG_TAG = SyncDirectoryWatcher.class.getSimpleName();
+
+    private static final int WATCHED_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.CREATE
+            | FileObserver.DELETE | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static SyncDirectoryWatcher instance;
+
+    private final Context context;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, FileObserver> observers = new HashMap<>();
+
+    private List<String> watchedRoots = new ArrayList<>();
+    private long debounceMs;
+    private long stableWindowMs;
+    private StableFileFilter stableFileFilter;
+    private DebouncedPathQueue changedPaths;
+
+    private SyncDirectoryWatcher(Context context)
+    {
+        this.context = context;
+    }
+
+    /**
+     * Starts, stops, or updates the watches to match the current preferences. This is safe to call as often as needed,
+     * and nothing is changed if the watched directories and settings are the same as before.
+     *
+     * @param context The context to read the preferences with.
+     */
+    public static synchronized void update(Context context)
+    {
+        if (instance == null) instance = new SyncDirectoryWatcher(context.getApplicationContext());
+        instance.applyPreferences();
+    }
+
+    private synchronized void applyPreferences()
+    {
+        final AppPreferences appPreferences = new AppPreferences(context);
+        final boolean autoSync = appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_AUTO_SYNC_KEY, true);
+        final boolean watchSyncDirectories = appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_WATCH_SYNC_DIRECTORIES_KEY,
+                SyncMonkeyConstants.DEFAULT_WATCH_SYNC_DIRECTORIES);
+
+        final List<String> roots = new ArrayList<>();
+        if (autoSync && watchSyncDirectories)
+        {
+            final String dataDirectoryPath = Environment.getExternalStorageDirectory().getPath() + "/";
+            for (String relativeSyncDirectory : appPreferences.getString(SyncMonkeyConstants.PROPERTY_LOCAL_SYNC_DIRECTORIES_KEY, "")
+                    .split(SyncMonkeyConstants.COLON_SEPARATOR))
+            {
+                if (!relativeSyncDirectory.isEmpty()) roots.add(dataDirectoryPath + relativeSyncDirectory);
+            }
+        }
+
+        final int debounceSeconds = Math.max(1, SyncMonkeyUtils.getIntPreference(appPreferences,
+                SyncMonkeyConstants.PROPERTY_FILE_WATCH_DEBOUNCE_SECONDS_KEY, SyncMonkeyConstants.DEFAULT_FILE_WATCH_DEBOUNCE_SECONDS));
+        final int stableFileWindowSeconds = Math.max(0, SyncMonkeyUtils.getIntPreference(appPreferences,
+                SyncMonkeyConstants.PROPERTY_STABLE_FILE_WINDOW_SECONDS_KEY, SyncMonkeyConstants.DEFAULT_STABLE_FILE_WINDOW_SECONDS));
+        final String markerSuffixes = appPreferences.getString(SyncMonkeyConstants.PROPERTY_IN_PROGRESS_MARKER_SUFFIXES_KEY,
+                SyncMonkeyConstants.DEFAULT_IN_PROGRESS_MARKER_SUFFIXES);
+
+        if (roots.equals(watchedRoots) && TimeUnit.SECONDS.toMillis(debounceSeconds) == debounceMs
+                && TimeUnit.SECONDS.toMillis(stableFileWindowSeconds) == stableWindowMs && !observers.isEmpty()) return;
+
+        stopWatching();
+        if (roots.isEmpty()) return;
+
+        debounceMs = TimeUnit.SECONDS.toMillis(debounceSeconds);
+        stableWindowMs = TimeUnit.SECONDS.toMillis(stableFileWindowSeconds);
+        stableFileFilter = new StableFileFilter(stableWindowMs, Arrays.asList(markerSuffixes.split(SyncMonkeyConstants.COLON_SEPARATOR)));
+        changedPaths = new DebouncedPathQueue(scheduler, debounceMs, TimeUnit.SECONDS.toMillis(SyncMonkeyConstants.FILE_WATCH_MAX_BATCH_DELAY_SECONDS),
+                this::syncChangedFiles);
+        watchedRoots = roots;
+
+        for (String root : roots)
+        {
+            watchTree(Paths.get(root));
+        }
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, "Watching " + observers.size() + " directories in " + roots + " for new files");
+        }
+    }
+
+    private synchronized void stopWatching()
+    {
+        observers.values().forEach(FileObserver::stopWatching);
+        observers.clear();
+        watchedRoots = new ArrayList<>();
+        if (changedPaths != null) changedPaths.clear();
+    }
+
+    /**
+     * Adds a watch to a directory and all the directories under it.
+     */
+    private synchronized void watchTree(Path directory)
+    {
+        try
+        {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes)
+                {
+                    watchDirectory(dir.toString());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e)
+                {
+                    Log.w(LOG_TAG, "Could not read " + file + " when adding the file watches", e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Could not add the file watches to " + directory, e);
+        }
+    }
+
+    private void watchDirectory(String directory)
+    {
+        if (observers.containsKey(directory)) return;
+
+        final FileObserver observer = newObserver(directory);
+        observers.put(directory, observer);
+        observer.startWatching();
+    }
+
+    /**
+     * Creates the observer for a directory with the constructor that is not deprecated on the running API level.
+     *
+     * @param directory The path of the directory to watch.
+     * @return The observer, which has not started watching yet.
+     */
+    @SuppressWarnings("deprecation")
+    private FileObserver newObserver(String directory)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+        {
+            return new FileObserver(new File(directory), WATCHED_EVENTS)
+            {
+                @Override
+                public void onEvent(int event, String path)
+                {
+                    onFileEvent(directory, event, path);
+                }
+            };
+        }
+
+        return new FileObserver(directory, WATCHED_EVENTS)
+        {
+            @Override
+            public void onEvent(int event, String path)
+            {
+                onFileEvent(directory, event, path);
+            }
+        };
+    }
+
+    private synchronized void onFileEvent(String directory, int event, String relativePath)
+    {
+        if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0)
+        {
+            final FileObserver observer = observers.remove(directory);
+            if (observer != null) observer.stopWatching();
+            return;
+        }
+
+        // Events can still arrive after the watches have been stopped
+        if (relativePath == null || !observers.containsKey(directory)) return;
+
+        final String path = directory + File.separator + relativePath;
+
+        if ((event & FileObserver.DELETE) != 0)
+        {
+            final String markedPath = stableFileFilter.getMarkedPath(path);
+            if (markedPath != null) changedPaths.add(markedPath);
+            return;
+        }
+
+        if (new File(path).isDirectory())
+        {
+            // A directory that was moved in can already have files in it
+            if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0)
+            {
+                watchTree(Paths.get(path));
+                if ((event & FileObserver.MOVED_TO) != 0) changedPaths.add(path);
+            }
+            return;
+        }
+
+        if ((event & (FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO)) != 0 && !stableFileFilter.isMarkerFile(path))
+        {
+            changedPaths.add(path);
+        }
+    }
+
+    private void syncChangedFiles(Set<String> paths)
+    {
+        final StableFileFilter currentStableFileFilter;
+        synchronized (this)
+        {
+            currentStableFileFilter = stableFileFilter;
+        }
+
+        final long nowMs = System.currentTimeMillis();
+        final Set<String> stablePaths = new LinkedHashSet<>();
+        for (String path : paths)
+        {
+            final File file = new File(path);
+            final long remainingWindowMs = file.isFile() ? currentStableFileFilter.getRemainingWindowMs(file.lastModified(), nowMs) : 0;
+            if (remainingWindowMs > 0)
+            {
+                scheduler.schedule(() -> requeue(path), remainingWindowMs, TimeUnit.MILLISECONDS);
+            } else
+            {
+                stablePaths.add(path);
+            }
+        }
+
+        if (stablePaths.isEmpty()) return;
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, "Starting a sync for " + stablePaths.size() + " new or changed files, holding back "
+                    + (paths.size() - stablePaths.size()) + " that are still being written");
+        }
+
+        SyncRequestCoalescer.requestSync(context, stablePaths);
+    }
+
+    /**
+     * Queues a file again once it has gone unmodified for the stable window. Files are dropped if the watches have been
+     * stopped since, and the periodic sync picks them up instead.
+     *
+     * @param path The path of the file that was held back.
+     */
+    private synchronized void requeue(String path)
+    {
+        if (!observers.isEmpty()) changedPaths.add(path);
+    }
+}
@@ -0,0 +1,115 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+/**
+ * Merges the sync now requests that come in close together into a single sync. Apps that share files with
+ * {@link SyncMonkeyConstants#ACTION_SEND_FILE_NO_UI} often send them one at a time in a loop, and without this each
+ * file would start its own expedited sync of every sync directory, all waiting on each other for the upload lock.
+ * <p>
+ * The first request after a quiet period is passed on straight away, so a single request, such as one from a
+ * broadcast that started the app process, is never held back. The requests that follow it within the coalescing
+ * window are merged into one more sync once the burst is over.
+ * <p>
+ * A request can carry the paths of the files that it is for, and if every merged request does, the sync only looks at
+ * those files. If any merged request is for a full sync, a full sync is run.
+ * <p>
+ * The merged requests are held in the app process for the coalescing window, so they can be lost if the process is
+ * killed straight after they are made. The next periodic sync picks up any files that were missed that way.
+ *
+ * @since 1.3.0
+ */
+public class SyncRequestCoalescer
+{
+    private static final String LOG_TAG = SyncRequestCoalescer.class.getSimpleName();
+
+    /**
+     * Stands in for a full sync in the queue, since an empty path can't be the path of a file.
+     */
+    private static final String FULL_SYNC = "";
+
+    private static DebouncedPathQueue pendingRequests;
+    private static long lastRequestMs = Long.MIN_VALUE;
+
+    private SyncRequestCoalescer()
+    {
+    }
+
+    /**
+     * Requests a sync of all the sync directories.
+     *
+     * @param context The context to use when requesting the sync.
+     */
+    public static void requestSync(Context context)
+    {
+        requestSync(context, Collections.singleton(FULL_SYNC));
+    }
+
+    /**
+     * Requests a sync of the provided files.
+     *
+     * @param context The context to use when requesting the sync.
+     * @param paths   The paths of the files that need to be synced.
+     */
+    public static void requestSync(Context context, Collection<String> paths)
+    {
+        if (paths.isEmpty()) return;
+
+        if (isFirstRequestOfBurst(System.currentTimeMillis()))
+        {
+            startSync(context.getApplicationContext(), new LinkedHashSet<>(paths));
+            return;
+        }
+
+        final DebouncedPathQueue queue = getPendingRequests(context);
+        paths.forEach(queue::add);
+    }
+
+    /**
+     * @param nowMs The time of the new request.
+     * @return True if no other request has been made within the coalescing window before this one.
+     */
+    private static synchronized boolean isFirstRequestOfBurst(long nowMs)
+    {
+        final boolean firstRequest = lastRequestMs == Long.MIN_VALUE
+                || nowMs - lastRequestMs >= SyncMonkeyConstants.SYNC_REQUEST_COALESCE_WINDOW_MS;
+        lastRequestMs = nowMs;
+        return firstRequest;
+    }
+
+    private static synchronized DebouncedPathQueue getPendingRequests(Context context)
+    {
+        if (pendingRequests == null)
+        {
+            final Context applicationContext = context.getApplicationContext();
+            pendingRequests = new DebouncedPathQueue(Executors.newSingleThreadScheduledExecutor(),
+                    SyncMonkeyConstants.SYNC_REQUEST_COALESCE_WINDOW_MS, SyncMonkeyConstants.SYNC_REQUEST_MAX_COALESCE_DELAY_MS,
+                    paths -> startSync(applicationContext, paths));
+        }
+        return pendingRequests;
+    }
+
+    private static void startSync(Context context, Set<String> paths)
+    {
+        if (paths.contains(FULL_SYNC))
+        {
+            if (Log.isLoggable(LOG_TAG, Log.INFO))
+            {
+                Log.i(LOG_TAG, "Starting one full sync for the pending sync requests");
+            }
+            FileUploadSyncAdapter.runSyncAdapterNow(context);
+        } else
+        {
+            FileUploadSyncAdapter.requestTargetedSync(context, paths);
+        }
+    }
+}
@@ -0,0 +1,605 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A durable on-device index of every file that has been synced to the remote server. For each file the size and last
+ * modified time at the point it was uploaded are recorded along with the blob name it was uploaded to and the MD5 of
+ * its content. This allows the sync adapter to skip files that have not changed since they were last synced without
+ * making any remote calls, and to tell when a file that has changed needs to be uploaded again.
+ * <p>
+ * The index is only ever accessed from the sync adapter's process. All the entries are loaded into memory the first
+ * time the index is used so that checking a file does not require a database query.
+ * <p>
+ * The index also holds a journal of the blocks that have been uploaded for any large file whose block upload has not
+ * been committed yet. If the sync process is killed or the network drops part way through a file, the next attempt
+ * uses the journal to only send the blocks that are missing.
+ * <p>
+ * For files that are synced to append blobs, the index records how many bytes of each file have been appended to its
+ * blob so that each sync only needs to send the data that was written since the last one.
+ * <p>
+ * Files that still failed to upload after all the retries in a sync are kept in a failure queue so that they can be
+ * uploaded ahead of everything else in the next sync.
+ * <p>
+ * For large files that were uploaded in blocks, the MD5 of each block is kept as well. When one of those files
+ * changes, only the blocks whose hash has changed need to be sent again.
+ *
+ * @since 1.3.0
+ */
+public class SyncStateIndex extends SQLiteOpenHelper
+{
+    private static final String LOG_TAG = SyncStateIndex.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "sync_state_index.db";
+    private static final int DATABASE_VERSION = 6;
+
+    private static final String TABLE_SYNCED_FILES = "synced_files";
+    private static final String COLUMN_PATH = "path";
+    private static final String COLUMN_SIZE = "size";
+    private static final String COLUMN_LAST_MODIFIED = "last_modified";
+    private static final String COLUMN_BLOB_NAME = "blob_name";
+    private static final String COLUMN_CONTENT_MD5 = "content_md5";
+
+    private static final String TABLE_IN_FLIGHT_UPLOADS = "in_flight_uploads";
+    private static final String COLUMN_BLOCK_SIZE = "block_size";
+
+    private static final String TABLE_UPLOADED_BLOCKS = "uploaded_blocks";
+    private static final String COLUMN_BLOCK_ID = "block_id";
+    private static final String COLUMN_OFFSET = "block_offset";
+    private static final String COLUMN_LENGTH = "block_length";
+
+    private static final String TABLE_APPENDED_FILES = "appended_files";
+    private static final String COLUMN_APPENDED_LENGTH = "appended_length";
+
+    private static final String TABLE_FAILED_UPLOADS = "failed_uploads";
+    private static final String COLUMN_FAILURE_COUNT = "failure_count";
+    private static final String COLUMN_LAST_FAILURE_TIME = "last_failure_time";
+
+    private static final String TABLE_SYNCED_BLOCKS = "synced_blocks";
+    private static final String COLUMN_BLOCK_INDEX = "block_index";
+    private static final String COLUMN_BLOCK_MD5 = "block_md5";
+
+    private Map<String, SyncedFile> syncedFiles;
+
+    public SyncStateIndex(Context context)
+    {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db)
+    {
+        db.execSQL("CREATE TABLE " + TABLE_SYNCED_FILES + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_LAST_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_BLOB_NAME + " TEXT NOT NULL, "
+                + COLUMN_CONTENT_MD5 + " TEXT)");
+
+        createUploadJournalTables(db);
+        createAppendedFilesTable(db);
+        createFailedUploadsTable(db);
+        createSyncedBlocksTable(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+    {
+        if (oldVersion < 2) createUploadJournalTables(db);
+        if (oldVersion < 3) createAppendedFilesTable(db);
+        if (oldVersion < 4) createFailedUploadsTable(db);
+        if (oldVersion < 5) db.execSQL("ALTER TABLE " + TABLE_SYNCED_FILES + " ADD COLUMN " + COLUMN_CONTENT_MD5 + " TEXT");
+        if (oldVersion < 6) createSyncedBlocksTable(db);
+    }
+
+    /**
+     * Creates the tables that track the block uploads that are in progress.
+     *
+     * @param db The database to create the tables in.
+     */
+    private static void createUploadJournalTables(SQLiteDatabase db)
+    {
+        db.execSQL("CREATE TABLE " + TABLE_IN_FLIGHT_UPLOADS + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_LAST_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_BLOB_NAME + " TEXT NOT NULL, "
+                + COLUMN_BLOCK_SIZE + " INTEGER NOT NULL)");
+
+        db.execSQL("CREATE TABLE " + TABLE_UPLOADED_BLOCKS + " ("
+                + COLUMN_PATH + " TEXT NOT NULL, "
+                + COLUMN_BLOCK_ID + " TEXT NOT NULL, "
+                + COLUMN_OFFSET + " INTEGER NOT NULL, "
+                + COLUMN_LENGTH + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_PATH + ", " + COLUMN_BLOCK_ID + "))");
+    }
+
+    /**
+     * Creates the table that tracks how much of each file has been appended to its append blob.
+     *
+     * @param db The database to create the table in.
+     */
+    private static void createAppendedFilesTable(SQLiteDatabase db)
+    {
+        db.execSQL("CREATE TABLE " + TABLE_APPENDED_FILES + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_BLOB_NAME + " TEXT NOT NULL, "
+                + COLUMN_APPENDED_LENGTH + " INTEGER NOT NULL)");
+    }
+
+    /**
+     * Creates the table that holds the queue of files that failed to upload.
+     *
+     * @param db The database to create the table in.
+     */
+    private static void createFailedUploadsTable(SQLiteDatabase db)
+    {
+        db.execSQL("CREATE TABLE " + TABLE_FAILED_UPLOADS + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_FAILURE_COUNT + " INTEGER NOT NULL, "
+                + COLUMN_LAST_FAILURE_TIME + " INTEGER NOT NULL)");
+    }
+
+    /**
+     * Creates the table that holds the MD5 of each block of the files that were uploaded in blocks.
+     *
+     * @param db The database to create the table in.
+     */
+    private static void createSyncedBlocksTable(SQLiteDatabase db)
+    {
+        db.execSQL("CREATE TABLE " + TABLE_SYNCED_BLOCKS + " ("
+                + COLUMN_PATH + " TEXT NOT NULL, "
+                + COLUMN_BLOB_NAME + " TEXT NOT NULL, "
+                + COLUMN_BLOCK_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_BLOCK_INDEX + " INTEGER NOT NULL, "
+                + COLUMN_BLOCK_MD5 + " TEXT NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_PATH + ", " + COLUMN_BLOCK_INDEX + "))");
+    }
+
+    /**
+     * Checks if the provided file has already been synced and has not changed since it was synced.
+     *
+     * @param path         The absolute path to the local file.
+     * @param size         The current size of the file in bytes.
+     * @param lastModified The current last modified time of the file in milliseconds since the epoch.
+     * @return True if the file was synced with the same size and last modified time, false otherwise.
+     */
+    public synchronized boolean isSynced(String path, long size, long lastModified)
+    {
+        final SyncedFile syncedFile = getSyncedFiles().get(path);
+        return syncedFile != null && syncedFile.size == size && syncedFile.lastModified == lastModified;
+    }
+
+    /**
+     * Checks if the provided file has been synced, has not changed since, and its content is known to be in blob
+     * storage. This is stricter than {@link #isSynced(String, long, long)}, which is also true for a file that was
+     * only matched to an existing blob by its name, or whose upload was rejected because the blob already existed.
+     * Only files that pass this check are safe to remove locally.
+     *
+     * @param path         The absolute path to the local file.
+     * @param size         The current size of the file in bytes.
+     * @param lastModified The current last modified time of the file in milliseconds since the epoch.
+     * @return True if the file was synced with the same size and last modified time, and a content MD5 was recorded
+     * for it, either from the upload or from a matching hash on the blob.
+     * @since 1.3.0
+     */
+    public synchronized boolean isVerifiedSynced(String path, long size, long lastModified)
+    {
+        final SyncedFile syncedFile = getSyncedFiles().get(path);
+        return syncedFile != null && syncedFile.size == size && syncedFile.lastModified == lastModified
+                && syncedFile.contentMd5 != null;
+    }
+
+    /**
+     * @param path The absolute path to the local file.
+     * @return The name of the blob that the file was last synced to, or null if the file has not been synced. The
+     * file's blob may only be replaced when the file is uploaded to this same blob name again.
+     */
+    public synchronized String getSyncedBlobName(String path)
+    {
+        final SyncedFile syncedFile = getSyncedFiles().get(path);
+        return syncedFile == null ? null : syncedFile.blobName;
+    }
+
+    /**
+     * @param path The absolute path to the local file.
+     * @return The Base64 encoded MD5 of the file's content when it was last synced, or null if the file has not been
+     * synced or its content hash is not known.
+     */
+    public synchronized String getSyncedContentMd5(String path)
+    {
+        final SyncedFile syncedFile = getSyncedFiles().get(path);
+        return syncedFile == null ? null : syncedFile.contentMd5;
+    }
+
+    /**
+     * Records that the provided file has been synced to the remote server.
+     *
+     * @param path         The absolute path to the local file.
+     * @param size         The size of the file in bytes when it was uploaded.
+     * @param lastModified The last modified time of the file in milliseconds since the epoch when it was uploaded.
+     * @param blobName     The name of the blob that the file was uploaded to.
+     * @param contentMd5   The Base64 encoded MD5 of the file's content, or null if it is not known.
+     */
+    public synchronized void markSynced(String path, long size, long lastModified, String blobName, String contentMd5)
+    {
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_PATH, path);
+        values.put(COLUMN_SIZE, size);
+        values.put(COLUMN_LAST_MODIFIED, lastModified);
+        values.put(COLUMN_BLOB_NAME, blobName);
+        values.put(COLUMN_CONTENT_MD5, contentMd5);
+
+        getWritableDatabase().insertWithOnConflict(TABLE_SYNCED_FILES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        getSyncedFiles().put(path, new SyncedFile(size, lastModified, blobName, contentMd5));
+    }
+
+    /**
+     * Removes the entries for any files in the provided directory that no longer exist locally so that the index does
+     * not keep growing with the history of every file that has ever been synced. This includes the upload journal of
+     * any block upload that was left unfinished when its file was deleted.
+     *
+     * @param directoryPath The absolute path to the sync directory that was just scanned.
+     * @param existingPaths The absolute paths of all the files that currently exist in the directory.
+     */
+    public synchronized void removeMissingFiles(String directoryPath, Collection<String> existingPaths)
+    {
+        final String directoryPrefix = directoryPath.endsWith("/") ? directoryPath : directoryPath + "/";
+        final SQLiteDatabase database = getWritableDatabase();
+
+        database.beginTransaction();
+        try
+        {
+            final Iterator<String> iterator = getSyncedFiles().keySet().iterator();
+            while (iterator.hasNext())
+            {
+                final String path = iterator.next();
+                if (path.startsWith(directoryPrefix) && !existingPaths.contains(path))
+                {
+                    database.delete(TABLE_SYNCED_FILES, COLUMN_PATH + " = ?", new String[]{path});
+                    iterator.remove();
+                }
+            }
+
+            removeMissingPaths(database, TABLE_APPENDED_FILES, directoryPrefix, existingPaths);
+            removeMissingPaths(database, TABLE_FAILED_UPLOADS, directoryPrefix, existingPaths);
+            removeMissingPaths(database, TABLE_SYNCED_BLOCKS, directoryPrefix, existingPaths);
+            removeMissingPaths(database, TABLE_IN_FLIGHT_UPLOADS, directoryPrefix, existingPaths);
+            removeMissingPaths(database, TABLE_UPLOADED_BLOCKS, directoryPrefix, existingPaths);
+            database.setTransactionSuccessful();
+        } finally
+        {
+            database.endTransaction();
+        }
+    }
+
+    private static void removeMissingPaths(SQLiteDatabase database, String table, String directoryPrefix, Collection<String> existingPaths)
+    {
+        // Grouped by path because the block tables have a row for every block of a file
+        try (Cursor cursor = database.query(table, new String[]{COLUMN_PATH}, null, null, COLUMN_PATH, null, null))
+        {
+            while (cursor.moveToNext())
+            {
+                final String path = cursor.getString(0);
+                if (path.startsWith(directoryPrefix) && !existingPaths.contains(path))
+                {
+                    database.delete(table, COLUMN_PATH + " = ?", new String[]{path});
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the files in the provided directory that are in the failure queue because they failed to upload in a
+     * previous sync.
+     *
+     * @param directoryPath The absolute path to the sync directory.
+     * @return The absolute paths of the queued files, mapped to the number of syncs in a row that they have failed in.
+     */
+    public synchronized Map<String, Integer> getFailedUploads(String directoryPath)
+    {
+        final String directoryPrefix = directoryPath.endsWith("/") ? directoryPath : directoryPath + "/";
+        final Map<String, Integer> failedUploads = new HashMap<>();
+
+        try (Cursor cursor = getReadableDatabase().query(TABLE_FAILED_UPLOADS, new String[]{COLUMN_PATH, COLUMN_FAILURE_COUNT},
+                null, null, null, null, null))
+        {
+            while (cursor.moveToNext())
+            {
+                final String path = cursor.getString(0);
+                if (path.startsWith(directoryPrefix)) failedUploads.put(path, cursor.getInt(1));
+            }
+        }
+
+        return failedUploads;
+    }
+
+    /**
+     * Adds the provided file to the failure queue, or increments its failure count if it is already queued.
+     *
+     * @param path         The absolute path to the local file.
+     * @param failureCount The number of syncs in a row that the file has now failed in.
+     */
+    public synchronized void recordFailedUpload(String path, int failureCount)
+    {
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_PATH, path);
+        values.put(COLUMN_FAILURE_COUNT, failureCount);
+        values.put(COLUMN_LAST_FAILURE_TIME, System.currentTimeMillis());
+
+        getWritableDatabase().insertWithOnConflict(TABLE_FAILED_UPLOADS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Removes the provided file from the failure queue once it has been uploaded.
+     *
+     * @param path The absolute path to the local file.
+     */
+    public synchronized void clearFailedUpload(String path)
+    {
+        getWritableDatabase().delete(TABLE_FAILED_UPLOADS, COLUMN_PATH + " = ?", new String[]{path});
+    }
+
+    /**
+     * Starts, or resumes, the journal for a block upload of the provided file. If there is already a journal for the
+     * file and it was started for the same version of the file, the blocks recorded in it are returned so that they
+     * don't need to be sent again. Otherwise any stale journal is discarded and a new one is started.
+     *
+     * @param path         The absolute path to the local file.
+     * @param size         The current size of the file in bytes.
+     * @param lastModified The current last modified time of the file in milliseconds since the epoch.
+     * @param blobName     The name of the blob that the file is being uploaded to.
+     * @param blockSize    The size of the blocks the file is being split into.
+     * @return The IDs of the blocks that were already uploaded for this version of the file, mapped to their length.
+     */
+    public synchronized Map<String, Long> startUploadJournal(String path, long size, long lastModified, String blobName, int blockSize)
+    {
+        final SQLiteDatabase database = getWritableDatabase();
+        final Map<String, Long> uploadedBlocks = new HashMap<>();
+
+        try (Cursor cursor = database.query(TABLE_IN_FLIGHT_UPLOADS, new String[]{COLUMN_SIZE, COLUMN_LAST_MODIFIED, COLUMN_BLOB_NAME, COLUMN_BLOCK_SIZE},
+                COLUMN_PATH + " = ?", new String[]{path}, null, null, null))
+        {
+            if (cursor.moveToFirst() && cursor.getLong(0) == size && cursor.getLong(1) == lastModified
+                    && blobName.equals(cursor.getString(2)) && cursor.getInt(3) == blockSize)
+            {
+                try (Cursor blockCursor = database.query(TABLE_UPLOADED_BLOCKS, new String[]{COLUMN_BLOCK_ID, COLUMN_LENGTH},
+                        COLUMN_PATH + " = ?", new String[]{path}, null, null, null))
+                {
+                    while (blockCursor.moveToNext())
+                    {
+                        uploadedBlocks.put(blockCursor.getString(0), blockCursor.getLong(1));
+                    }
+                }
+
+                return uploadedBlocks;
+            }
+        }
+
+        database.beginTransaction();
+        try
+        {
+            deleteUploadJournal(database, path);
+
+            final ContentValues values = new ContentValues();
+            values.put(COLUMN_PATH, path);
+            values.put(COLUMN_SIZE, size);
+            values.put(COLUMN_LAST_MODIFIED, lastModified);
+            values.put(COLUMN_BLOB_NAME, blobName);
+            values.put(COLUMN_BLOCK_SIZE, blockSize);
+            database.insertWithOnConflict(TABLE_IN_FLIGHT_UPLOADS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+            database.setTransactionSuccessful();
+        } finally
+        {
+            database.endTransaction();
+        }
+
+        return uploadedBlocks;
+    }
+
+    /**
+     * Records that a block of the provided file has been uploaded, but not yet committed.
+     *
+     * @param path    The absolute path to the local file.
+     * @param blockId The ID of the block that was uploaded.
+     * @param offset  The position in the file where the block starts.
+     * @param length  The length of the block in bytes.
+     */
+    public synchronized void journalUploadedBlock(String path, String blockId, long offset, long length)
+    {
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_PATH, path);
+        values.put(COLUMN_BLOCK_ID, blockId);
+        values.put(COLUMN_OFFSET, offset);
+        values.put(COLUMN_LENGTH, length);
+
+        getWritableDatabase().insertWithOnConflict(TABLE_UPLOADED_BLOCKS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Removes the journal for the provided file once its block list has been committed.
+     *
+     * @param path The absolute path to the local file.
+     */
+    public synchronized void clearUploadJournal(String path)
+    {
+        final SQLiteDatabase database = getWritableDatabase();
+
+        database.beginTransaction();
+        try
+        {
+            deleteUploadJournal(database, path);
+            database.setTransactionSuccessful();
+        } finally
+        {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Gets the number of bytes of the provided file that have been appended to its append blob.
+     *
+     * @param path     The absolute path to the local file.
+     * @param blobName The name of the append blob that the file is synced to.
+     * @return The number of bytes that have been appended, or -1 if nothing has been recorded for the file and blob.
+     */
+    public synchronized long getAppendedLength(String path, String blobName)
+    {
+        try (Cursor cursor = getReadableDatabase().query(TABLE_APPENDED_FILES, new String[]{COLUMN_BLOB_NAME, COLUMN_APPENDED_LENGTH},
+                COLUMN_PATH + " = ?", new String[]{path}, null, null, null))
+        {
+            if (cursor.moveToFirst() && blobName.equals(cursor.getString(0))) return cursor.getLong(1);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Records the number of bytes of the provided file that have been appended to its append blob. This is called
+     * after every append so that an interrupted sync picks up where it left off.
+     *
+     * @param path           The absolute path to the local file.
+     * @param blobName       The name of the append blob that the file is synced to.
+     * @param appendedLength The number of bytes from the start of the file that are now in the append blob.
+     */
+    public synchronized void recordAppendedLength(String path, String blobName, long appendedLength)
+    {
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_PATH, path);
+        values.put(COLUMN_BLOB_NAME, blobName);
+        values.put(COLUMN_APPENDED_LENGTH, appendedLength);
+
+        getWritableDatabase().insertWithOnConflict(TABLE_APPENDED_FILES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Gets the MD5 of each block of the provided file from the last time it was uploaded in blocks.
+     *
+     * @param path      The absolute path to the local file.
+     * @param blobName  The name of the blob that the file is being uploaded to.
+     * @param blockSize The size of the blocks the file is being split into.
+     * @return The Base64 encoded MD5 of each block, in block order, or an empty list if the file was not last uploaded
+     * to the same blob with the same block size.
+     */
+    public synchronized List<String> getSyncedBlockHashes(String path, String blobName, int blockSize)
+    {
+        final List<String> blockHashes = new ArrayList<>();
+
+        try (Cursor cursor = getReadableDatabase().query(TABLE_SYNCED_BLOCKS, new String[]{COLUMN_BLOB_NAME, COLUMN_BLOCK_SIZE, COLUMN_BLOCK_MD5},
+                COLUMN_PATH + " = ?", new String[]{path}, null, null, COLUMN_BLOCK_INDEX))
+        {
+            while (cursor.moveToNext())
+            {
+                if (!blobName.equals(cursor.getString(0)) || cursor.getInt(1) != blockSize) return Collections.emptyList();
+                blockHashes.add(cursor.getString(2));
+            }
+        }
+
+        return blockHashes;
+    }
+
+    /**
+     * Records the MD5 of each block of the provided file once its block list has been committed, replacing the hashes
+     * from any earlier upload.
+     *
+     * @param path        The absolute path to the local file.
+     * @param blobName    The name of the blob that the file was uploaded to.
+     * @param blockSize   The size of the blocks the file was split into.
+     * @param blockHashes The Base64 encoded MD5 of each block, in block order.
+     */
+    public synchronized void recordSyncedBlockHashes(String path, String blobName, int blockSize, List<String> blockHashes)
+    {
+        final SQLiteDatabase database = getWritableDatabase();
+
+        database.beginTransaction();
+        try
+        {
+            database.delete(TABLE_SYNCED_BLOCKS, COLUMN_PATH + " = ?", new String[]{path});
+
+            final ContentValues values = new ContentValues();
+            for (int blockIndex = 0; blockIndex < blockHashes.size(); blockIndex++)
+            {
+                values.put(COLUMN_PATH, path);
+                values.put(COLUMN_BLOB_NAME, blobName);
+                values.put(COLUMN_BLOCK_SIZE, blockSize);
+                values.put(COLUMN_BLOCK_INDEX, blockIndex);
+                values.put(COLUMN_BLOCK_MD5, blockHashes.get(blockIndex));
+                database.insert(TABLE_SYNCED_BLOCKS, null, values);
+            }
+
+            database.setTransactionSuccessful();
+        } finally
+        {
+            database.endTransaction();
+        }
+    }
+
+    private static void deleteUploadJournal(SQLiteDatabase database, String path)
+    {
+        database.delete(TABLE_UPLOADED_BLOCKS, COLUMN_PATH + " = ?", new String[]{path});
+        database.delete(TABLE_IN_FLIGHT_UPLOADS, COLUMN_PATH + " = ?", new String[]{path});
+    }
+
+    /**
+     * @return The in memory copy of the index, which is loaded from the database the first time it is needed.
+     */
+    private Map<String, SyncedFile> getSyncedFiles()
+    {
+        if (syncedFiles == null)
+        {
+            syncedFiles = new HashMap<>();
+
+            try (Cursor cursor = getReadableDatabase().query(TABLE_SYNCED_FILES,
+                    new String[]{COLUMN_PATH, COLUMN_SIZE, COLUMN_LAST_MODIFIED, COLUMN_BLOB_NAME, COLUMN_CONTENT_MD5},
+                    null, null, null, null, null))
+            {
+                while (cursor.moveToNext())
+                {
+                    syncedFiles.put(cursor.getString(0), new SyncedFile(cursor.getLong(1), cursor.getLong(2), cursor.getString(3),
+                            cursor.isNull(4) ? null : cursor.getString(4)));
+                }
+            }
+
+            if (Log.isLoggable(LOG_TAG, Log.INFO))
+            {
+                Log.i(LOG_TAG, "Loaded " + syncedFiles.size() + " entries from the sync state index");
+            }
+        }
+
+        return syncedFiles;
+    }
+
+    /**
+     * The state of a local file at the point it was synced to the remote server.
+     */
+    private static class SyncedFile
+    {
+        private final long size;
+        private final long lastModified;
+        private final String blobName;
+        private final String contentMd5;
+
+        SyncedFile(long size, long lastModified, String blobName, String contentMd5)
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.blobName = blobName;
+            this.contentMd5 = contentMd5;
+        }
+    }
+}
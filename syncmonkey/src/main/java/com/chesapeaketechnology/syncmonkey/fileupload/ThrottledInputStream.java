@@ -0,0 +1,53 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that limits how fast it can be read using a shared {@link TokenBucket}. It wraps the body of each
+ * request, which the storage SDK copies to the connection as it reads it, so limiting the read rate limits the rate
+ * that data goes onto the network. Reads are capped to a small size, and to at most one second of data at the rate
+ * limit, so that the upload is spread out evenly rather than sent in bursts.
+ * <p>
+ * Each read counts as progress for the {@link StallWatchdog}. Because all the requests in flight share one bucket, a
+ * read can wait up to about one second for each of the other requests that are also waiting, so the stall timeout
+ * needs to be comfortably longer than that number of seconds when the upload rate is limited.
+ *
+ * @since 1.3.0
+ */
+public class ThrottledInputStream extends FilterInputStream
+{
+    private static final int MAX_READ_SIZE = 16 * 1024;
+
+    private final TokenBucket tokenBucket;
+    private final int maxReadSize;
+
+    /**
+     * @param inputStream The stream to read the upload data from.
+     * @param tokenBucket The token bucket shared by all the uploads.
+     */
+    public ThrottledInputStream(InputStream inputStream, TokenBucket tokenBucket)
+    {
+        super(inputStream);
+        this.tokenBucket = tokenBucket;
+
+        maxReadSize = (int) Math.max(1, Math.min(MAX_READ_SIZE, tokenBucket.getBytesPerSecond()));
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        final int value = super.read();
+        if (value != -1) tokenBucket.acquire(1);
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        final int bytesRead = super.read(buffer, offset, Math.min(length, maxReadSize));
+        if (bytesRead > 0) tokenBucket.acquire(bytesRead);
+        return bytesRead;
+    }
+}
@@ -0,0 +1,96 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket that limits the rate that bytes are uploaded at. The bucket refills at a fixed number of bytes per
+ * second up to its burst size, and every byte that is sent takes a token from the bucket. A single bucket is shared
+ * by all the upload threads, so the limit applies to the total of all the concurrent uploads.
+ * <p>
+ * Tokens are handed out as reservations: a thread that takes more tokens than are in the bucket puts the bucket into
+ * debt and waits for the debt to be paid off, and threads that come after it wait behind it. This keeps the overall
+ * rate at the limit no matter how many threads are uploading.
+ *
+ * @since 1.3.0
+ */
+public class TokenBucket
+{
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long bytesPerSecond;
+    private final long burstBytes;
+    private final LongSupplier nanoClock;
+
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param bytesPerSecond The sustained rate that bytes can be sent at.
+     * @param burstBytes     The maximum number of bytes that can be sent at once after the bucket has been idle.
+     */
+    public TokenBucket(long bytesPerSecond, long burstBytes)
+    {
+        this(bytesPerSecond, burstBytes, System::nanoTime);
+    }
+
+    TokenBucket(long bytesPerSecond, long burstBytes, LongSupplier nanoClock)
+    {
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = burstBytes;
+        this.nanoClock = nanoClock;
+
+        tokens = burstBytes;
+        lastRefillNanos = nanoClock.getAsLong();
+    }
+
+    /**
+     * @return The sustained rate that bytes can be sent at.
+     */
+    public long getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Takes the provided number of tokens from the bucket, blocking until the bucket has refilled enough to cover
+     * them.
+     *
+     * @param bytes The number of bytes that are about to be sent, or were just sent.
+     * @throws InterruptedIOException If the thread is interrupted while waiting.
+     */
+    public void acquire(int bytes) throws InterruptedIOException
+    {
+        final long waitNanos = reserve(bytes);
+        if (waitNanos <= 0) return;
+
+        try
+        {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upload bandwidth");
+        }
+    }
+
+    /**
+     * Takes the provided number of tokens from the bucket without blocking.
+     *
+     * @param bytes The number of tokens to take.
+     * @return How long in nanoseconds the caller needs to wait before sending the bytes, which is zero if there were
+     * enough tokens in the bucket.
+     */
+    synchronized long reserve(int bytes)
+    {
+        final long now = nanoClock.getAsLong();
+        tokens = Math.min(burstBytes, tokens + (now - lastRefillNanos) * (double) bytesPerSecond / NANOS_PER_SECOND);
+        lastRefillNanos = now;
+
+        tokens -= bytes;
+        if (tokens >= 0) return 0;
+
+        return (long) Math.ceil(-tokens * NANOS_PER_SECOND / bytesPerSecond);
+    }
+}
@@ -0,0 +1,76 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of uploading a batch of files to blob storage.
+ *
+ * @since 1.3.0
+ */
+public class UploadResult
+{
+    private final Map<Path, String> syncedFiles = new HashMap<>();
+    private final Map<Path, String> contentMd5s = new HashMap<>();
+    private final List<Path> failedFiles = new ArrayList<>();
+
+    void addSyncedFile(Path file, String blobName)
+    {
+        addSyncedFile(file, blobName, null);
+    }
+
+    void addSyncedFile(Path file, String blobName, String contentMd5)
+    {
+        syncedFiles.put(file, blobName);
+        contentMd5s.put(file, contentMd5);
+    }
+
+    void addFailedFile(Path file)
+    {
+        failedFiles.add(file);
+    }
+
+    void addAll(UploadResult uploadResult)
+    {
+        syncedFiles.putAll(uploadResult.syncedFiles);
+        contentMd5s.putAll(uploadResult.contentMd5s);
+        failedFiles.addAll(uploadResult.failedFiles);
+    }
+
+    /**
+     * @return The files that are present in blob storage, either because they were uploaded or because they were
+     * already present, mapped to the name of their blob.
+     */
+    public Map<Path, String> getSyncedFiles()
+    {
+        return syncedFiles;
+    }
+
+    /**
+     * @param file A file that is present in blob storage.
+     * @return The Base64 encoded MD5 of the file's content, or null if it was not worked out during the upload.
+     */
+    public String getContentMd5(Path file)
+    {
+        return contentMd5s.get(file);
+    }
+
+    /**
+     * @return The files that could not be uploaded.
+     */
+    public List<Path> getFailedFiles()
+    {
+        return failedFiles;
+    }
+
+    /**
+     * @return True if every file in the batch is present in blob storage.
+     */
+    public boolean isSuccessful()
+    {
+        return failedFiles.isEmpty();
+    }
+}
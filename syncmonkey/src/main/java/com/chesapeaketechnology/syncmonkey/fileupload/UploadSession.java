@@ -0,0 +1,446 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.RequestCompletedEvent;
+import com.microsoft.azure.storage.ResponseReceivedEvent;
+import com.microsoft.azure.storage.SendingRequestEvent;
+import com.microsoft.azure.storage.StorageEvent;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the upload settings and the worker threads for a single sync. The settings are read from the preferences at
+ * the start of each sync so that any changes are picked up without restarting the sync process.
+ * <p>
+ * Files are uploaded on the file executor, and the blocks of large files are uploaded on a separate block executor so
+ * that a file upload waiting on its blocks can never starve the pool that the blocks need to run on. Reading the file,
+ * and any hashing or compression, happens on the file's own thread while the block workers send the blocks that are
+ * already full, so the disk and the network are kept busy at the same time without any extra threads.
+ * <p>
+ * A session can be cancelled from another thread, for example when the sync framework cancels the sync. Cancelling
+ * stops the worker threads, drops any uploads that have not started yet, and disconnects the connections of the
+ * requests that are in flight so that the uploads stop straight away instead of running on until they time out.
+ * Block uploads stop at the next block boundary, and the blocks that were already uploaded stay in the upload journal
+ * so that the next sync can resume from them.
+ * <p>
+ * Every blob storage operation in the session is watched by a {@link StallWatchdog}, which aborts any request that
+ * has stopped making progress so that it can be retried.
+ *
+ * @since 1.3.0
+ */
+public class UploadSession implements Closeable
+{
+    private final SyncStateIndex syncStateIndex;
+    private final ExistenceCheckMode existenceCheckMode;
+    private final RetryPolicy retryPolicy;
+    private final TokenBucket bandwidthLimiter;
+    private final CompressionFormat compressionFormat;
+    private final int compressionLevel;
+    private final Set<String> compressedExtensions;
+    private final long bundleFileSizeThreshold;
+    private final long maxBundleSize;
+    private final StableFileFilter stableFileFilter;
+    private final RetentionPolicy retentionPolicy;
+    private final BacklogBudget backlogBudget;
+    private final int workerCount;
+    private final long blockUploadThreshold;
+    private final int blockSize;
+    private final ExecutorService fileExecutor;
+    private final ExecutorService blockExecutor;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicLong newDataBytes = new AtomicLong();
+    private final StallWatchdog stallWatchdog;
+    private final Map<OperationContext, StallWatchdog.Operation> watchedOperations = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, String>> remoteBlobHashes = new ConcurrentHashMap<>();
+    private final Semaphore blockBuffers;
+    private volatile boolean cancelled;
+
+    /**
+     * @param syncStateIndex          The index used to journal the progress of block uploads.
+     * @param existenceCheckMode      The strategy to use for skipping files that are already present in blob storage.
+     * @param retryPolicy             The policy to use for retrying requests that fail with a transient error. Requests
+     *                                are no longer retried once this session is cancelled.
+     * @param bandwidthLimiter        The token bucket shared by all the uploads to limit the upload rate, or null if the
+     *                                upload rate is not limited.
+     * @param compressionFormat       The format to compress files with while they are uploaded.
+     * @param compressionLevel        The deflate compression level, between 1 and 9.
+     * @param compressedExtensions    The lower case extensions, without the dot, of the files that should be compressed.
+     * @param bundleFileSizeThreshold Files smaller than this size in bytes are bundled into zip archives, or 0 to
+     *                                upload every file on its own.
+     * @param maxBundleSize           The total size in bytes of the files to put in a single bundle.
+     * @param stableFileFilter        The filter used to defer files that are still being written.
+     * @param retentionPolicy         The policy for removing local files once they have been uploaded.
+     * @param backlogBudget           The limit on how much older data is uploaded in this sync.
+     * @param workerCount             The number of files, and separately the number of blocks, to upload in parallel.
+     * @param blockUploadThreshold    Files that are this size in bytes or larger are uploaded in blocks.
+     * @param blockSize               The size in bytes of each block when uploading a file in blocks.
+     * @param stallTimeoutMs          How long a request can go without progress before it is aborted and retried, or 0
+     *                                to never abort a request that stalls.
+     */
+    public UploadSession(SyncStateIndex syncStateIndex, ExistenceCheckMode existenceCheckMode, RetryPolicy retryPolicy,
+                         TokenBucket bandwidthLimiter, CompressionFormat compressionFormat, int compressionLevel,
+                         Set<String> compressedExtensions, long bundleFileSizeThreshold, long maxBundleSize,
+                         StableFileFilter stableFileFilter, RetentionPolicy retentionPolicy, BacklogBudget backlogBudget, int workerCount,
+                         long blockUploadThreshold, int blockSize, long stallTimeoutMs)
+    {
+        this.syncStateIndex = syncStateIndex;
+        this.existenceCheckMode = existenceCheckMode;
+        this.retryPolicy = retryPolicy.stopWhen(this::isCancelled);
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.compressionFormat = compressionFormat;
+        this.compressionLevel = compressionLevel;
+        this.compressedExtensions = compressedExtensions;
+        this.bundleFileSizeThreshold = bundleFileSizeThreshold;
+        this.maxBundleSize = maxBundleSize;
+        this.stableFileFilter = stableFileFilter;
+        this.retentionPolicy = retentionPolicy;
+        this.backlogBudget = backlogBudget;
+        this.workerCount = workerCount;
+        this.blockUploadThreshold = blockUploadThreshold;
+        this.blockSize = blockSize;
+
+        fileExecutor = Executors.newFixedThreadPool(workerCount);
+        blockExecutor = Executors.newFixedThreadPool(workerCount);
+        blockBuffers = new Semaphore(workerCount);
+        stallWatchdog = new StallWatchdog(stallTimeoutMs);
+    }
+
+    public SyncStateIndex getSyncStateIndex()
+    {
+        return syncStateIndex;
+    }
+
+    public ExistenceCheckMode getExistenceCheckMode()
+    {
+        return existenceCheckMode;
+    }
+
+    public RetryPolicy getRetryPolicy()
+    {
+        return retryPolicy;
+    }
+
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+    /**
+     * @param file The file that is about to be uploaded.
+     * @return The format to compress the file with, which is {@link CompressionFormat#NONE} if compression is turned
+     * off or the file's extension is not one of the compressed extensions.
+     */
+    public CompressionFormat getCompressionFormat(Path file)
+    {
+        if (compressionFormat == CompressionFormat.NONE) return CompressionFormat.NONE;
+
+        final String fileName = file.getFileName().toString();
+        final int extensionStart = fileName.lastIndexOf('.');
+        if (extensionStart == -1) return CompressionFormat.NONE;
+
+        final String extension = fileName.substring(extensionStart + 1).toLowerCase(Locale.US);
+        return compressedExtensions.contains(extension) ? compressionFormat : CompressionFormat.NONE;
+    }
+
+    public long getBundleFileSizeThreshold()
+    {
+        return bundleFileSizeThreshold;
+    }
+
+    public long getMaxBundleSize()
+    {
+        return maxBundleSize;
+    }
+
+    public StableFileFilter getStableFileFilter()
+    {
+        return stableFileFilter;
+    }
+
+    public RetentionPolicy getRetentionPolicy()
+    {
+        return retentionPolicy;
+    }
+
+    public BacklogBudget getBacklogBudget()
+    {
+        return backlogBudget;
+    }
+
+    public int getWorkerCount()
+    {
+        return workerCount;
+    }
+
+    public long getBlockUploadThreshold()
+    {
+        return blockUploadThreshold;
+    }
+
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    /**
+     * Queues a file upload on the file executor.
+     *
+     * @param task The upload to run.
+     * @return The pending result of the upload, which is already cancelled if this session has been cancelled.
+     */
+    <T> Future<T> submitFile(Callable<T> task)
+    {
+        return submit(fileExecutor, task);
+    }
+
+    /**
+     * Queues a block upload on the block executor. Every block that is queued or being uploaded holds one of the
+     * session's block buffers, which are shared by all the file uploads, so this waits while every block buffer is in
+     * use. That caps the memory held by blocks for the whole session rather than for each file. The buffer is handed
+     * back as soon as the upload finishes, fails, or is cancelled.
+     *
+     * @param task The upload to run.
+     * @return The pending result of the upload, which is already cancelled if this session has been cancelled.
+     * @throws InterruptedIOException If the thread was interrupted while waiting for a block buffer.
+     */
+    <T> Future<T> submitBlock(Callable<T> task) throws InterruptedIOException
+    {
+        try
+        {
+            blockBuffers.acquire();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a block upload to finish");
+        }
+
+        final FutureTask<T> blockUpload = new FutureTask<T>(task)
+        {
+            @Override
+            protected void done()
+            {
+                blockBuffers.release();
+            }
+        };
+
+        try
+        {
+            blockExecutor.execute(blockUpload);
+        } catch (RejectedExecutionException e)
+        {
+            // The executor has been shut down by a cancel, so the upload is cancelled, which also hands back its buffer
+            blockUpload.cancel(false);
+        }
+        return blockUpload;
+    }
+
+    private static <T> Future<T> submit(ExecutorService executor, Callable<T> task)
+    {
+        try
+        {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e)
+        {
+            // The executor has been shut down by a cancel, so hand back a task that is already cancelled
+            final FutureTask<T> cancelledTask = new FutureTask<>(task);
+            cancelledTask.cancel(false);
+            return cancelledTask;
+        }
+    }
+
+    /**
+     * Creates the operation context to use for one or more blob storage calls. The connections of the requests made
+     * with it are tracked so that they can be disconnected if they stall or if this session is cancelled. The context
+     * must be passed to {@link #recordRequests(OperationContext)} once the calls are complete.
+     *
+     * @return A new operation context.
+     */
+    OperationContext newOperationContext()
+    {
+        final OperationContext operationContext = new OperationContext();
+        final StallWatchdog.Operation watchedOperation = stallWatchdog.track();
+        watchedOperations.put(operationContext, watchedOperation);
+
+        operationContext.getSendingRequestEventHandler().addListener(new StorageEvent<SendingRequestEvent>()
+        {
+            @Override
+            public void eventOccurred(SendingRequestEvent event)
+            {
+                final HttpURLConnection connection = (HttpURLConnection) event.getConnectionObject();
+                watchedOperation.requestStarted(connection);
+                if (cancelled) connection.disconnect();
+            }
+        });
+        operationContext.getResponseReceivedEventHandler().addListener(new StorageEvent<ResponseReceivedEvent>()
+        {
+            @Override
+            public void eventOccurred(ResponseReceivedEvent event)
+            {
+                watchedOperation.requestFinished((HttpURLConnection) event.getConnectionObject());
+            }
+        });
+        // A request that fails before a response is received, such as one that is disconnected, only completes, and
+        // its connection must not be left behind to be seen as a stall while the retry is waiting for its backoff
+        operationContext.getRequestCompletedEventHandler().addListener(new StorageEvent<RequestCompletedEvent>()
+        {
+            @Override
+            public void eventOccurred(RequestCompletedEvent event)
+            {
+                watchedOperation.requestFinished((HttpURLConnection) event.getConnectionObject());
+            }
+        });
+
+        return operationContext;
+    }
+
+    /**
+     * Stops all the uploads in this session as soon as possible. This can be called from any thread.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+
+        cancelQueuedTasks(fileExecutor);
+        cancelQueuedTasks(blockExecutor);
+
+        stallWatchdog.disconnectAll();
+    }
+
+    /**
+     * @return True if this session has been cancelled.
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * Checks if this session has been cancelled so that a long running upload can stop at a safe point.
+     *
+     * @throws InterruptedIOException If this session has been cancelled.
+     */
+    void checkCancelled() throws InterruptedIOException
+    {
+        if (cancelled) throw new InterruptedIOException("The upload was cancelled");
+    }
+
+    /**
+     * Shuts down the provided executor, interrupting any running tasks and cancelling the queued ones so that nothing
+     * is left waiting on a task that will never run.
+     *
+     * @param executor The executor to stop.
+     */
+    private static void cancelQueuedTasks(ExecutorService executor)
+    {
+        for (Runnable queuedTask : executor.shutdownNow())
+        {
+            if (queuedTask instanceof Future) ((Future<?>) queuedTask).cancel(false);
+        }
+    }
+
+    /**
+     * Wraps the body of a single request so that it is read no faster than the upload rate limit allows, and so that
+     * each read counts as progress for the stall watchdog. The storage SDK copies the body to the connection as it
+     * reads it, so this paces the data where it goes onto the network rather than where it is read from the file.
+     *
+     * @param inputStream      The body of a Put Blob, Put Block, or Append Block request.
+     * @param operationContext The operation context of the upload, which must come from {@link #newOperationContext()}.
+     * @return The stream to pass to blob storage.
+     */
+    InputStream monitor(InputStream inputStream, OperationContext operationContext)
+    {
+        final InputStream throttledInputStream = bandwidthLimiter == null ? inputStream
+                : new ThrottledInputStream(inputStream, bandwidthLimiter);
+
+        return new ProgressInputStream(throttledInputStream, watchedOperations.get(operationContext)::recordProgress);
+    }
+
+    /**
+     * @param destinationPath The Blob Storage path that the blobs were listed under.
+     * @return The manifest of the blobs under the destination path that was listed earlier in this session, or null if
+     * they have not been listed yet.
+     */
+    Map<String, String> getRemoteBlobHashes(String destinationPath)
+    {
+        return remoteBlobHashes.get(destinationPath);
+    }
+
+    /**
+     * Keeps the manifest of the blobs under a destination path for the rest of this session, so that the blobs are only
+     * listed once for each sync directory.
+     *
+     * @param destinationPath The Blob Storage path that the blobs were listed under.
+     * @param blobHashes      The blob names mapped to their content hashes, which must be safe to update from multiple
+     *                        threads.
+     */
+    void putRemoteBlobHashes(String destinationPath, Map<String, String> blobHashes)
+    {
+        remoteBlobHashes.put(destinationPath, blobHashes);
+    }
+
+    /**
+     * Adds the requests that were made using the provided operation context to the total for this session, and stops
+     * watching the context for stalls.
+     *
+     * @param operationContext The operation context that was used for one or more blob storage calls.
+     */
+    void recordRequests(OperationContext operationContext)
+    {
+        requestCount.addAndGet(operationContext.getRequestResults().size());
+
+        final StallWatchdog.Operation watchedOperation = watchedOperations.remove(operationContext);
+        if (watchedOperation != null) stallWatchdog.release(watchedOperation);
+    }
+
+    /**
+     * @return The total number of requests made to blob storage during this session.
+     */
+    public int getRequestCount()
+    {
+        return requestCount.get();
+    }
+
+    /**
+     * Adds to the amount of data that was written to the sync directories since the previous sync, which is used to
+     * adapt the sync interval.
+     *
+     * @param bytes The size of the new and changed files found in a sync directory.
+     */
+    public void addNewDataBytes(long bytes)
+    {
+        newDataBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @return The amount of data written to the sync directories since the previous sync.
+     */
+    public long getNewDataBytes()
+    {
+        return newDataBytes.get();
+    }
+
+    @Override
+    public void close()
+    {
+        fileExecutor.shutdownNow();
+        blockExecutor.shutdownNow();
+        stallWatchdog.close();
+    }
+}
@@ -0,0 +1,70 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for adapting the sync interval to how fast data is being written
+ */
+public class AdaptiveSyncIntervalTest
+{
+    private static final long MB = 1024 * 1024;
+    private static final long MIN_INTERVAL_MS = TimeUnit.MINUTES.toMillis(15);
+    private static final long MAX_INTERVAL_MS = TimeUnit.HOURS.toMillis(6);
+
+    private final AdaptiveSyncInterval syncInterval = new AdaptiveSyncInterval(MIN_INTERVAL_MS, MAX_INTERVAL_MS, 10 * MB);
+
+    @Test
+    public void idleDeviceSyncsAtTheLongestInterval()
+    {
+        assertEquals(MAX_INTERVAL_MS, syncInterval.nextIntervalMs(0, false, TimeUnit.HOURS.toMillis(1)));
+    }
+
+    @Test
+    public void busyDeviceSyncsAtTheShortestInterval()
+    {
+        assertEquals(MIN_INTERVAL_MS, syncInterval.nextIntervalMs(500 * MB, false, TimeUnit.HOURS.toMillis(1)));
+    }
+
+    @Test
+    public void intervalCarriesTheTargetAmountOfData()
+    {
+        assertEquals(TimeUnit.HOURS.toMillis(2), syncInterval.nextIntervalMs(5 * MB, false, TimeUnit.HOURS.toMillis(1)));
+        assertEquals(TimeUnit.MINUTES.toMillis(30), syncInterval.nextIntervalMs(20 * MB, false, TimeUnit.HOURS.toMillis(1)));
+    }
+
+    @Test
+    public void backlogUsesTheShortestInterval()
+    {
+        assertEquals(MIN_INTERVAL_MS, syncInterval.nextIntervalMs(0, true, TimeUnit.HOURS.toMillis(1)));
+    }
+
+    @Test
+    public void unknownRateKeepsTheCurrentInterval()
+    {
+        assertEquals(TimeUnit.HOURS.toMillis(1),
+                syncInterval.nextIntervalMs(AdaptiveSyncInterval.UNKNOWN_DATA_RATE, false, TimeUnit.HOURS.toMillis(1)));
+    }
+
+    @Test
+    public void sameMinAndMaxGivesAFixedInterval()
+    {
+        final long hourMs = TimeUnit.HOURS.toMillis(1);
+        final AdaptiveSyncInterval fixedInterval = new AdaptiveSyncInterval(hourMs, hourMs, 10 * MB);
+
+        assertEquals(hourMs, fixedInterval.nextIntervalMs(0, false, hourMs));
+        assertEquals(hourMs, fixedInterval.nextIntervalMs(500 * MB, true, hourMs));
+    }
+
+    @Test
+    public void dataRateIsSmoothedOverSyncs()
+    {
+        final long twoHoursMs = TimeUnit.HOURS.toMillis(2);
+
+        assertEquals(4 * MB, AdaptiveSyncInterval.estimateDataRate(AdaptiveSyncInterval.UNKNOWN_DATA_RATE, 8 * MB, twoHoursMs));
+        assertEquals(2 * MB, AdaptiveSyncInterval.estimateDataRate(4 * MB, 0, twoHoursMs));
+    }
+}
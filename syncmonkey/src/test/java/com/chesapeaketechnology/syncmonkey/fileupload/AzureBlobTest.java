@@ -0,0 +1,43 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import com.microsoft.azure.storage.StorageException;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for recognizing the errors blob storage returns for a conditional create
+ */
+public class AzureBlobTest
+{
+    @Test
+    public void existingBlobIsRecognized()
+    {
+        assertTrue(AzureBlob.isBlobAlreadyPresent(storageException(409)));
+        assertTrue(AzureBlob.isBlobAlreadyPresent(storageException(412)));
+    }
+
+    @Test
+    public void existingBlobIsRecognizedWhenWrappedInAnIoError()
+    {
+        // The storage SDK's streams report the failed commit of a blob this way
+        assertTrue(AzureBlob.isBlobAlreadyPresent(new IOException("Commit failed", storageException(409))));
+    }
+
+    @Test
+    public void otherErrorsAreNotMistakenForAnExistingBlob()
+    {
+        assertFalse(AzureBlob.isBlobAlreadyPresent(storageException(500)));
+        assertFalse(AzureBlob.isBlobAlreadyPresent(new IOException("Commit failed", storageException(403))));
+        assertFalse(AzureBlob.isBlobAlreadyPresent(new IOException("Disk error")));
+    }
+
+    private static StorageException storageException(int statusCode)
+    {
+        return new StorageException("TestError", "Test error", statusCode, null, null);
+    }
+}
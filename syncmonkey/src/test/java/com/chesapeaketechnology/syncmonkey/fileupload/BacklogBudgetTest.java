@@ -0,0 +1,53 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for limiting how much backlog is uploaded in a single sync
+ */
+public class BacklogBudgetTest
+{
+    private static final long HOUR_MS = 60 * 60 * 1000L;
+    private static final long NOW_MS = 1_000 * HOUR_MS;
+
+    @Test
+    public void freshFilesAreAlwaysUploaded()
+    {
+        final BacklogBudget backlogBudget = new BacklogBudget(24 * HOUR_MS, 100);
+
+        assertTrue(backlogBudget.tryAcquire(1000, NOW_MS - 48 * HOUR_MS, NOW_MS));
+        assertFalse(backlogBudget.tryAcquire(1000, NOW_MS - 48 * HOUR_MS, NOW_MS));
+        assertTrue(backlogBudget.tryAcquire(1000, NOW_MS - HOUR_MS, NOW_MS));
+        assertEquals(1, backlogBudget.getDeferredFileCount());
+    }
+
+    @Test
+    public void backlogStopsOnceTheBudgetIsSpent()
+    {
+        final BacklogBudget backlogBudget = new BacklogBudget(HOUR_MS, 250);
+        final long oldFileModifiedMs = NOW_MS - 10 * HOUR_MS;
+
+        assertTrue(backlogBudget.tryAcquire(100, oldFileModifiedMs, NOW_MS));
+        assertTrue(backlogBudget.tryAcquire(100, oldFileModifiedMs, NOW_MS));
+        assertTrue(backlogBudget.tryAcquire(100, oldFileModifiedMs, NOW_MS));
+        assertFalse(backlogBudget.tryAcquire(100, oldFileModifiedMs, NOW_MS));
+        assertFalse(backlogBudget.tryAcquire(1, oldFileModifiedMs, NOW_MS));
+        assertEquals(2, backlogBudget.getDeferredFileCount());
+    }
+
+    @Test
+    public void zeroBudgetMeansNoLimit()
+    {
+        final BacklogBudget backlogBudget = new BacklogBudget(0, 0);
+
+        for (int i = 0; i < 100; i++)
+        {
+            assertTrue(backlogBudget.tryAcquire(Long.MAX_VALUE / 200, 0, NOW_MS));
+        }
+        assertEquals(0, backlogBudget.getDeferredFileCount());
+    }
+}
@@ -0,0 +1,78 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the streaming compression of uploads
+ */
+public class CompressingInputStreamTest
+{
+    @Test
+    public void gzipOutputCanBeDecompressed() throws IOException
+    {
+        final byte[] original = getSurveyCsv();
+        final byte[] compressed = readAll(new CompressingInputStream(new ByteArrayInputStream(original), CompressionFormat.GZIP,
+                Deflater.DEFAULT_COMPRESSION));
+
+        assertTrue(compressed.length < original.length / 3);
+        assertArrayEquals(original, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void deflateOutputCanBeDecompressed() throws IOException
+    {
+        final byte[] original = getSurveyCsv();
+        final byte[] compressed = readAll(new CompressingInputStream(new ByteArrayInputStream(original), CompressionFormat.DEFLATE,
+                Deflater.BEST_SPEED));
+
+        assertTrue(compressed.length < original.length / 3);
+        assertArrayEquals(original, readAll(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void emptyInputProducesValidGzip() throws IOException
+    {
+        final byte[] compressed = readAll(new CompressingInputStream(new ByteArrayInputStream(new byte[0]), CompressionFormat.GZIP,
+                Deflater.DEFAULT_COMPRESSION));
+
+        assertArrayEquals(new byte[0], readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    private static byte[] getSurveyCsv()
+    {
+        final StringBuilder csv = new StringBuilder("time,latitude,longitude,rsrp,rsrq\n");
+        for (int i = 0; i < 20000; i++)
+        {
+            csv.append(1600000000L + i).append(",38.9").append(i % 97).append(",-76.4").append(i % 89)
+                    .append(",-").append(80 + i % 30).append(",-").append(5 + i % 10).append('\n');
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException
+    {
+        try (InputStream stream = inputStream)
+        {
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1000];
+            int bytesRead;
+            while ((bytesRead = stream.read(buffer)) != -1)
+            {
+                outputStream.write(buffer, 0, bytesRead);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for batching the changed paths from the file watcher
+ */
+public class DebouncedPathQueueTest
+{
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final BlockingQueue<Set<String>> batches = new LinkedBlockingQueue<>();
+
+    @After
+    public void shutDownScheduler()
+    {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void burstOfChangesIsHandedOverAsOneBatch() throws InterruptedException
+    {
+        final DebouncedPathQueue queue = new DebouncedPathQueue(scheduler, 100, 10_000, batches::add);
+
+        queue.add("/data/a.csv");
+        queue.add("/data/b.csv");
+        queue.add("/data/a.csv");
+
+        assertEquals(new LinkedHashSet<>(Arrays.asList("/data/a.csv", "/data/b.csv")), batches.poll(5, TimeUnit.SECONDS));
+        assertNull(batches.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void batchIsNotHeldBackPastTheMaxDelay() throws InterruptedException
+    {
+        final AtomicLong clockMs = new AtomicLong(0);
+        final DebouncedPathQueue queue = new DebouncedPathQueue(scheduler, 60_000, 120_000, batches::add, clockMs::get);
+
+        queue.add("/data/a.csv");
+        clockMs.set(120_000);
+        queue.add("/data/b.csv");
+
+        assertEquals(new LinkedHashSet<>(Arrays.asList("/data/a.csv", "/data/b.csv")), batches.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void clearDropsThePendingChanges() throws InterruptedException
+    {
+        final DebouncedPathQueue queue = new DebouncedPathQueue(scheduler, 50, 10_000, batches::add);
+
+        queue.add("/data/a.csv");
+        queue.clear();
+
+        assertNull(batches.poll(300, TimeUnit.MILLISECONDS));
+    }
+}
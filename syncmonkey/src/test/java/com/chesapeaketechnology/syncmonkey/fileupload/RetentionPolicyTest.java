@@ -0,0 +1,141 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for choosing which uploaded files to remove from local storage
+ */
+public class RetentionPolicyTest
+{
+    private static final long NOW = 1_600_000_000_000L;
+    private static final long ONE_DAY = TimeUnit.DAYS.toMillis(1);
+
+    @Test
+    public void deleteModeOnlyRemovesSyncedFiles() throws IOException
+    {
+        final Map<Path, BasicFileAttributes> files = createFiles(100, 100, 100);
+        final Path[] paths = files.keySet().toArray(new Path[0]);
+        final Set<Path> syncedFiles = new HashSet<>(Arrays.asList(paths[0], paths[2]));
+
+        final RetentionPolicy retentionPolicy = new RetentionPolicy(RetentionMode.DELETE, "archive", 0, 0);
+
+        assertEquals(new HashSet<>(Arrays.asList(paths[0], paths[2])),
+                new HashSet<>(retentionPolicy.selectFilesToRemove(files, syncedFiles::contains, NOW)));
+    }
+
+    @Test
+    public void keepModeRemovesNothing() throws IOException
+    {
+        final Map<Path, BasicFileAttributes> files = createFiles(100);
+
+        final RetentionPolicy retentionPolicy = new RetentionPolicy(RetentionMode.KEEP, "archive", 0, 0);
+
+        assertEquals(Collections.emptyList(), retentionPolicy.selectFilesToRemove(files, file -> true, NOW));
+    }
+
+    @Test
+    public void quotaRemovesTheOldestSyncedFilesFirst() throws IOException
+    {
+        // Oldest first: 400 bytes synced, 300 bytes not synced, 200 bytes synced, 100 bytes synced
+        final Map<Path, BasicFileAttributes> files = createFiles(400, 300, 200, 100);
+        final Path[] paths = files.keySet().toArray(new Path[0]);
+        final Set<Path> syncedFiles = new HashSet<>(Arrays.asList(paths[0], paths[2], paths[3]));
+
+        final RetentionPolicy retentionPolicy = new RetentionPolicy(RetentionMode.QUOTA, "archive", 500, 0);
+
+        // The unsynced file is kept even though it is older, so the next oldest synced file goes too
+        assertEquals(Arrays.asList(paths[0], paths[2]), retentionPolicy.selectFilesToRemove(files, syncedFiles::contains, NOW));
+    }
+
+    @Test
+    public void quotaRemovesSyncedFilesOlderThanTheMaximumAge() throws IOException
+    {
+        final Map<Path, BasicFileAttributes> files = createFiles(100, 100, 100);
+        final Path[] paths = files.keySet().toArray(new Path[0]);
+
+        final RetentionPolicy retentionPolicy = new RetentionPolicy(RetentionMode.QUOTA, "archive", 0, ONE_DAY + ONE_DAY / 2);
+
+        assertEquals(Arrays.asList(paths[0], paths[1]), retentionPolicy.selectFilesToRemove(files, file -> true, NOW + ONE_DAY));
+    }
+
+    @Test
+    public void fileWrittenToAfterTheScanIsKept() throws IOException
+    {
+        final Map<Path, BasicFileAttributes> files = createFiles(100, 100);
+        final Path[] paths = files.keySet().toArray(new Path[0]);
+
+        // The index holds the attributes that each file was uploaded with, which match the scan
+        final Map<String, Long> syncedSizes = new HashMap<>();
+        files.forEach((file, attributes) -> syncedSizes.put(file.toString(), attributes.size()));
+        final RetentionPolicy.SyncCheck syncCheck = (path, size, lastModified) -> syncedSizes.get(path) == size;
+
+        Files.write(paths[0], new byte[10], StandardOpenOption.APPEND);
+
+        final RetentionPolicy retentionPolicy = new RetentionPolicy(RetentionMode.DELETE, "archive", 0, 0);
+
+        assertEquals(1, retentionPolicy.apply(paths[0].getParent(), files, syncCheck, NOW));
+        assertTrue(Files.exists(paths[0]));
+        assertFalse(Files.exists(paths[1]));
+    }
+
+    @Test
+    public void archivingNeverReplacesAnEarlierArchivedFile() throws IOException
+    {
+        final Path directory = Files.createTempDirectory("archive");
+        directory.toFile().deleteOnExit();
+        final Path archivedFile = directory.resolve("survey.csv");
+
+        for (int i = 0; i < 3; i++)
+        {
+            final Path file = Files.createTempFile(directory, "upload", ".tmp");
+            Files.write(file, new byte[]{(byte) i});
+            final Path movedFile = RetentionPolicy.moveToUnusedPath(file, archivedFile);
+            movedFile.toFile().deleteOnExit();
+        }
+
+        assertArrayEquals(new byte[]{0}, Files.readAllBytes(archivedFile));
+        assertArrayEquals(new byte[]{1}, Files.readAllBytes(directory.resolve("survey-1.csv")));
+        assertArrayEquals(new byte[]{2}, Files.readAllBytes(directory.resolve("survey-2.csv")));
+    }
+
+    /**
+     * Creates a file for each of the provided sizes, where each file was last modified a day after the one before it
+     * and the last one was modified at {@link #NOW}.
+     */
+    private static Map<Path, BasicFileAttributes> createFiles(int... sizes) throws IOException
+    {
+        final Path directory = Files.createTempDirectory("retention");
+        directory.toFile().deleteOnExit();
+
+        final Map<Path, BasicFileAttributes> files = new LinkedHashMap<>();
+        for (int i = 0; i < sizes.length; i++)
+        {
+            final Path file = directory.resolve("survey-" + i + ".csv");
+            Files.write(file, new byte[sizes[i]]);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(NOW - (sizes.length - 1 - i) * ONE_DAY));
+            file.toFile().deleteOnExit();
+            files.put(file, Files.readAttributes(file, BasicFileAttributes.class));
+        }
+        return files;
+    }
+}
@@ -0,0 +1,128 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import com.microsoft.azure.storage.StorageException;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the upload retry policy
+ */
+public class RetryPolicyTest
+{
+    @Test
+    public void backoffDelayIsExponentialAndCapped()
+    {
+        final RetryPolicy retryPolicy = new RetryPolicy(10, 1000, 30000);
+        final Random random = new Random(42);
+
+        for (int i = 0; i < 100; i++)
+        {
+            assertInRange(retryPolicy.getBackoffDelay(1, random), 500, 1000);
+            assertInRange(retryPolicy.getBackoffDelay(2, random), 1000, 2000);
+            assertInRange(retryPolicy.getBackoffDelay(3, random), 2000, 4000);
+
+            // Once the delay reaches the cap it stops growing
+            assertInRange(retryPolicy.getBackoffDelay(6, random), 15000, 30000);
+            assertInRange(retryPolicy.getBackoffDelay(64, random), 15000, 30000);
+        }
+    }
+
+    @Test
+    public void transientErrorsAreRetried()
+    {
+        assertTrue(RetryPolicy.isTransient(storageException(503, null)));
+        assertTrue(RetryPolicy.isTransient(storageException(500, null)));
+        assertTrue(RetryPolicy.isTransient(storageException(408, null)));
+        assertTrue(RetryPolicy.isTransient(storageException(306, new SocketTimeoutException())));
+        assertTrue(RetryPolicy.isTransient(storageException(306, new TimeoutException())));
+
+        assertFalse(RetryPolicy.isTransient(storageException(403, null)));
+        assertFalse(RetryPolicy.isTransient(storageException(404, null)));
+        assertFalse(RetryPolicy.isTransient(storageException(412, null)));
+        assertFalse(RetryPolicy.isTransient(storageException(306, new IllegalArgumentException())));
+    }
+
+    @Test
+    public void wrappedTransientErrorsAreRetried()
+    {
+        // The storage SDK's streams report errors from blob storage as an I/O error with the storage error as its cause
+        assertTrue(RetryPolicy.isTransient(new IOException("Commit failed", storageException(503, null))));
+        assertTrue(RetryPolicy.isTransient(new IOException("Commit failed", storageException(306, new SocketTimeoutException()))));
+        assertTrue(RetryPolicy.isTransient(new SocketTimeoutException()));
+
+        assertFalse(RetryPolicy.isTransient(new IOException("Commit failed", storageException(409, null))));
+        assertFalse(RetryPolicy.isTransient(new IOException("Disk error")));
+        assertFalse(RetryPolicy.isTransient(new InterruptedIOException("The upload was cancelled")));
+    }
+
+    @Test
+    public void wrappedTransientErrorIsRetriedUntilItSucceeds() throws Exception
+    {
+        final RetryPolicy retryPolicy = new RetryPolicy(3, 1, 1);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        final String result = retryPolicy.execute("upload", () -> {
+            if (attempts.incrementAndGet() < 3) throw new IOException("Commit failed", storageException(500, null));
+            return "uploaded";
+        });
+
+        assertEquals("uploaded", result);
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void failureAfterCancellingIsNotRetried() throws Exception
+    {
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final RetryPolicy retryPolicy = new RetryPolicy(5, 1, 1).stopWhen(cancelled::get);
+        final AtomicInteger attempts = new AtomicInteger();
+
+        // Cancelling disconnects the request, which fails the same way as a dropped connection
+        try
+        {
+            retryPolicy.execute("upload", () -> {
+                attempts.incrementAndGet();
+                cancelled.set(true);
+                throw storageException(306, new SocketException("Socket closed"));
+            });
+            fail("Expected the failure to be rethrown");
+        } catch (StorageException e)
+        {
+            assertEquals(306, e.getHttpStatusCode());
+        }
+        assertEquals(1, attempts.get());
+
+        try
+        {
+            retryPolicy.execute("upload", attempts::incrementAndGet);
+            fail("Expected the cancelled policy to not start an attempt");
+        } catch (InterruptedIOException expected)
+        {
+            assertEquals(1, attempts.get());
+        }
+    }
+
+    private static StorageException storageException(int statusCode, Exception cause)
+    {
+        return new StorageException("TestError", "Test error", statusCode, null, cause);
+    }
+
+    private static void assertInRange(long value, long min, long max)
+    {
+        assertTrue("Expected " + value + " to be between " + min + " and " + max, value >= min && value <= max);
+    }
+}
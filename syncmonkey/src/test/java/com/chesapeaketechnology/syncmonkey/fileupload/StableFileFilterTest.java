@@ -0,0 +1,72 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for deferring files that are still being written
+ */
+public class StableFileFilterTest
+{
+    private static final long NOW = 1_600_000_000_000L;
+
+    private final StableFileFilter stableFileFilter = new StableFileFilter(60_000, Arrays.asList(".lock", ".part"));
+
+    @Test
+    public void recentlyModifiedFilesAreDeferred()
+    {
+        final Set<String> existingPaths = Collections.singleton("/data/survey.csv");
+
+        assertFalse(stableFileFilter.isStable("/data/survey.csv", NOW - 1_000, existingPaths, NOW));
+        assertTrue(stableFileFilter.isStable("/data/survey.csv", NOW - 60_000, existingPaths, NOW));
+    }
+
+    @Test
+    public void remainingWindowCountsDownToZero()
+    {
+        assertEquals(59_000, stableFileFilter.getRemainingWindowMs(NOW - 1_000, NOW));
+        assertEquals(0, stableFileFilter.getRemainingWindowMs(NOW - 60_000, NOW));
+        assertEquals(0, stableFileFilter.getRemainingWindowMs(NOW - 600_000, NOW));
+    }
+
+    @Test
+    public void filesWithAMarkerAreDeferred()
+    {
+        final Set<String> existingPaths = new HashSet<>(Arrays.asList("/data/survey.csv", "/data/survey.csv.lock", "/data/other.csv"));
+
+        assertFalse(stableFileFilter.isStable("/data/survey.csv", NOW - 600_000, existingPaths, NOW));
+        assertTrue(stableFileFilter.isStable("/data/other.csv", NOW - 600_000, existingPaths, NOW));
+    }
+
+    @Test
+    public void markerFilesAreRecognized()
+    {
+        assertTrue(stableFileFilter.isMarkerFile("/data/survey.csv.lock"));
+        assertTrue(stableFileFilter.isMarkerFile("/data/survey.csv.part"));
+        assertFalse(stableFileFilter.isMarkerFile("/data/survey.csv"));
+    }
+
+    @Test
+    public void markedPathIsFoundFromTheMarker()
+    {
+        assertEquals("/data/survey.csv", stableFileFilter.getMarkedPath("/data/survey.csv.lock"));
+        assertNull(stableFileFilter.getMarkedPath("/data/survey.csv"));
+    }
+
+    @Test
+    public void zeroWindowOnlyChecksMarkers()
+    {
+        final StableFileFilter markerOnlyFilter = new StableFileFilter(0, Collections.singletonList(".lock"));
+
+        assertTrue(markerOnlyFilter.isStable("/data/survey.csv", NOW, Collections.singleton("/data/survey.csv"), NOW));
+    }
+}
@@ -0,0 +1,132 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import org.junit.Test;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for aborting uploads that have stopped making progress
+ */
+public class StallWatchdogTest
+{
+    private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicLong clock = new AtomicLong();
+    private final StallWatchdog stallWatchdog = new StallWatchdog(60_000, clock::get, false);
+
+    @Test
+    public void stalledRequestIsDisconnected() throws Exception
+    {
+        final FakeConnection connection = new FakeConnection();
+        stallWatchdog.track().requestStarted(connection);
+
+        clock.addAndGet(59 * ONE_SECOND);
+        assertEquals(0, stallWatchdog.checkForStalls());
+
+        clock.addAndGet(2 * ONE_SECOND);
+        assertEquals(1, stallWatchdog.checkForStalls());
+        assertTrue(connection.disconnected);
+    }
+
+    @Test
+    public void progressKeepsTheRequestAlive() throws Exception
+    {
+        final FakeConnection connection = new FakeConnection();
+        final StallWatchdog.Operation operation = stallWatchdog.track();
+        operation.requestStarted(connection);
+
+        for (int i = 0; i < 10; i++)
+        {
+            clock.addAndGet(30 * ONE_SECOND);
+            operation.recordProgress();
+            assertEquals(0, stallWatchdog.checkForStalls());
+        }
+
+        assertFalse(connection.disconnected);
+    }
+
+    @Test
+    public void idleOperationsAreNotAborted()
+    {
+        final StallWatchdog.Operation operation = stallWatchdog.track();
+
+        clock.addAndGet(600 * ONE_SECOND);
+        assertEquals(0, stallWatchdog.checkForStalls());
+
+        stallWatchdog.release(operation);
+    }
+
+    @Test
+    public void finishedRequestIsNotAborted() throws Exception
+    {
+        final FakeConnection connection = new FakeConnection();
+        final StallWatchdog.Operation operation = stallWatchdog.track();
+        operation.requestStarted(connection);
+        operation.requestFinished(connection);
+
+        clock.addAndGet(600 * ONE_SECOND);
+        assertEquals(0, stallWatchdog.checkForStalls());
+        assertFalse(connection.disconnected);
+    }
+
+    @Test
+    public void retryAfterAFailedRequestIsNotAbortedDuringTheBackoff() throws Exception
+    {
+        final FakeConnection failedConnection = new FakeConnection();
+        final StallWatchdog.Operation operation = stallWatchdog.track();
+
+        // The request fails without a response, so it only completes
+        operation.requestStarted(failedConnection);
+        operation.requestFinished(failedConnection);
+
+        // The retry policy backs off for longer than the stall timeout before the next attempt
+        clock.addAndGet(90 * ONE_SECOND);
+        assertEquals(0, stallWatchdog.checkForStalls());
+
+        final FakeConnection retryConnection = new FakeConnection();
+        operation.requestStarted(retryConnection);
+
+        clock.addAndGet(59 * ONE_SECOND);
+        assertEquals(0, stallWatchdog.checkForStalls());
+        assertFalse(retryConnection.disconnected);
+
+        clock.addAndGet(2 * ONE_SECOND);
+        assertEquals(1, stallWatchdog.checkForStalls());
+        assertTrue(retryConnection.disconnected);
+        assertFalse(failedConnection.disconnected);
+    }
+
+    private static class FakeConnection extends HttpURLConnection
+    {
+        private boolean disconnected;
+
+        FakeConnection() throws Exception
+        {
+            super(new URL("https://example.blob.core.windows.net/container/blob"));
+        }
+
+        @Override
+        public void disconnect()
+        {
+            disconnected = true;
+        }
+
+        @Override
+        public boolean usingProxy()
+        {
+            return false;
+        }
+
+        @Override
+        public void connect()
+        {
+        }
+    }
+}
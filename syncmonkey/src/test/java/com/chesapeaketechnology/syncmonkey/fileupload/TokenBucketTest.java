@@ -0,0 +1,57 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the upload bandwidth limiter
+ */
+public class TokenBucketTest
+{
+    private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void burstIsSentWithoutWaiting()
+    {
+        final AtomicLong clock = new AtomicLong();
+        final TokenBucket tokenBucket = new TokenBucket(1000, 2000, clock::get);
+
+        assertEquals(0, tokenBucket.reserve(1500));
+        assertEquals(0, tokenBucket.reserve(500));
+
+        // The bucket is empty, so the next bytes have to wait for it to refill at 1000 bytes per second
+        assertEquals(ONE_SECOND / 2, tokenBucket.reserve(500));
+    }
+
+    @Test
+    public void waitingThreadsQueueBehindEachOther()
+    {
+        final AtomicLong clock = new AtomicLong();
+        final TokenBucket tokenBucket = new TokenBucket(1000, 1000, clock::get);
+
+        assertEquals(0, tokenBucket.reserve(1000));
+        assertEquals(ONE_SECOND, tokenBucket.reserve(1000));
+        assertEquals(2 * ONE_SECOND, tokenBucket.reserve(1000));
+
+        // Once the time has passed the debt is paid off
+        clock.addAndGet(2 * ONE_SECOND);
+        assertEquals(ONE_SECOND, tokenBucket.reserve(1000));
+    }
+
+    @Test
+    public void idleBucketOnlyRefillsToTheBurstSize()
+    {
+        final AtomicLong clock = new AtomicLong();
+        final TokenBucket tokenBucket = new TokenBucket(1000, 1000, clock::get);
+
+        assertEquals(0, tokenBucket.reserve(1000));
+        clock.addAndGet(60 * ONE_SECOND);
+
+        assertEquals(0, tokenBucket.reserve(1000));
+        assertEquals(ONE_SECOND, tokenBucket.reserve(1000));
+    }
+}